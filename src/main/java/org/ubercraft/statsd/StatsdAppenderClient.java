@@ -0,0 +1,185 @@
+package org.ubercraft.statsd;
+
+import java.io.File;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * The client used by the logback appenders, which reports errors to the logback status of one of the appenders
+ * currently using it, and is safe for use by unsynchronized appenders. Appenders obtain instances via
+ * {@link #acquire}, which shares clients with the same settings between appenders using the
+ * {@link StatsdClientRegistry}, and give them up via {@link #release(ContextAware)}.
+ */
+class StatsdAppenderClient extends StatsdClient {
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    // distinguishes clients for the same endpoint with different settings, e.g. in JMX names
+    private final String name = toString() + "#" + IDS.incrementAndGet();
+
+    // the appenders currently using this client
+    private final List<ContextAware> owners = new CopyOnWriteArrayList<ContextAware>();
+
+    // the last appender to use this client, for errors while lingering
+    private volatile ContextAware lastOwner;
+
+    private final AtomicBoolean warnQueueFull = new AtomicBoolean(true);
+
+    // reports through this client, for as long as it lives, if enabled
+    private volatile StatsdJvmReporter jvmReporter;
+
+    StatsdAppenderClient(String host, int port, int highQueueSize, int queueSize, int lowQueueSize,
+            ContextAware owner) throws UnknownHostException, SocketException {
+        super(host, port, null, highQueueSize, queueSize, lowQueueSize);
+        this.lastOwner = owner;
+    }
+
+    static StatsdAppenderClient acquire(final Appender<?> owner, final String host, final int port,
+            final int highQueueSize, final int queueSize, final int lowQueueSize, final long queueOfferTimeout,
+            final String format, final String tags, final int maxPacketSize, final boolean packing,
+            final String spillFile, final int spillSize, final long spillMaxAge, final int spillReplayRate,
+            final int snapshotKeys, final long snapshotWindow, final boolean jvmMetrics,
+            final String jvmMetricsPrefix, final long jvmMetricsInterval) throws Exception {
+
+        String endpoint = host + ":" + port;
+        String key = endpoint + //
+                "?highQueueSize=" + highQueueSize + //
+                "&queueSize=" + queueSize + //
+                "&lowQueueSize=" + lowQueueSize + //
+                "&queueOfferTimeout=" + queueOfferTimeout + //
+                "&format=" + format + //
+                "&tags=" + tags + //
+                "&maxPacketSize=" + maxPacketSize + //
+                "&packing=" + packing + //
+                "&spillFile=" + spillFile + //
+                "&spillSize=" + spillSize + //
+                "&spillMaxAge=" + spillMaxAge + //
+                "&spillReplayRate=" + spillReplayRate + //
+                "&snapshotKeys=" + snapshotKeys + //
+                "&snapshotWindow=" + snapshotWindow + //
+                "&jvmMetrics=" + jvmMetrics + //
+                "&jvmMetricsPrefix=" + jvmMetricsPrefix + //
+                "&jvmMetricsInterval=" + jvmMetricsInterval;
+
+        StatsdClientRegistry.Factory factory = new StatsdClientRegistry.Factory() {
+            @Override
+            public StatsdClient create() throws Exception {
+                StatsdAppenderClient client = new StatsdAppenderClient(host, port, highQueueSize, queueSize, //
+                        lowQueueSize, owner);
+                try {
+                    client.setQueueOfferTimeout(queueOfferTimeout);
+                    client.setMaxPacketSize(maxPacketSize);
+                    client.setPacking(packing);
+                    client.setEncoder(tags != null ? new StatsdDogEncoder(tags.split(",")) : //
+                            StatsdEncoders.forName(format));
+
+                    if (spillFile != null) {
+                        client.setSpillReplayRate(spillReplayRate);
+                        client.setSpillBuffer(StatsdClientRegistry.acquireSpillBuffer(new File(spillFile), spillSize, //
+                                spillMaxAge));
+                    }
+
+                    if (snapshotKeys > 0) {
+                        client.setSnapshot(new StatsdSnapshot(snapshotKeys, snapshotWindow));
+                    }
+
+                    if (jvmMetrics) {
+                        client.jvmReporter = new StatsdJvmReporter(client, jvmMetricsPrefix, jvmMetricsInterval);
+                        client.jvmReporter.start();
+                    }
+                }
+                catch (Exception e) {
+                    client.shutdown();
+                    StatsdSpillBuffer spillBuffer = client.getSpillBuffer();
+                    if (spillBuffer != null) {
+                        StatsdClientRegistry.releaseSpillBuffer(spillBuffer);
+                    }
+                    throw e;
+                }
+                return client;
+            }
+        };
+
+        // identifies the appender across reconfiguration, for handing over stats queued in its previous client, which
+        // an unnamed appender cannot be
+        String ownerId = owner.getName() != null ? owner.getClass().getName() + ":" + owner.getName() : null;
+
+        StatsdAppenderClient acquired = (StatsdAppenderClient)StatsdClientRegistry.acquire(key, endpoint, ownerId, //
+                factory);
+        acquired.owners.add(owner);
+        acquired.lastOwner = owner;
+        return acquired;
+    }
+
+    /**
+     * Called by appenders when they stop using this client, instead of releasing it to the registry directly.
+     */
+    void release(ContextAware owner) {
+        owners.remove(owner);
+        StatsdClientRegistry.release(this);
+    }
+
+    /**
+     * Returns a name for this client that is unique within the process, for registering its components with JMX.
+     */
+    String getName() {
+        return name;
+    }
+
+    StatsdJvmReporter getJvmReporter() {
+        return jvmReporter;
+    }
+
+    @Override
+    public void shutdown() {
+        StatsdJvmReporter jvmReporter = this.jvmReporter;
+        if (jvmReporter != null) {
+            jvmReporter.stop();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Called by appenders when a stat has been sent (or enqueued) successfully.
+     */
+    void sent() {
+        // read first, to avoid a write per stat
+        if (!warnQueueFull.get()) {
+            warnQueueFull.set(true);
+        }
+    }
+
+    @Override
+    protected boolean isQueueFullReported() {
+        // only the first stat dropped since the last one sent is reported
+        return warnQueueFull.get();
+    }
+
+    @Override
+    protected void errorQueueFull(String stat) {
+        if (warnQueueFull.compareAndSet(true, false)) {
+            owner().addWarn("statsd appender queue is full, if you see this message " + //
+                    "it means the queue size needs to be increased, " + //
+                    "or the number of stats logged decreased: " + stat);
+        }
+    }
+
+    @Override
+    protected void handleError(String message, String stat, Exception e) {
+        owner().addError(message + ": sending " + stat + " to " + toString(), e);
+    }
+
+    private ContextAware owner() {
+        for (ContextAware owner : owners) {
+            return owner;
+        }
+        return lastOwner;
+    }
+}
@@ -0,0 +1,236 @@
+package org.ubercraft.statsd;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of stats to be submitted together, in one call. A batch is submitted to the client queue as a single entry,
+ * and its stats are written into as few packets as possible. Use {@link StatsdClient#submit(StatsdBatch)} to submit a
+ * batch to a client directly, or the <code>xxxBatch(...)</code> methods of {@link StatsdLogger} to submit it via
+ * logging.
+ * <p/>
+ * Batches are intended to be reused: obtain one with {@link #forCurrentThread()} (or {@link StatsdClient#batch()}),
+ * which returns the calling thread's batch, emptied ready for use. The stats are held in primitive arrays that grow as
+ * needed, so in the steady state building and submitting a batch does not allocate. A batch must not be modified
+ * after it has been submitted, until it has been sent; doing so results in an {@link IllegalStateException}. Each
+ * thread has two batches, used in turn, so that a thread can build its next batch while the previous one is still
+ * waiting to be sent; only if both are still waiting does {@link #forCurrentThread()} allocate a new batch.
+ * <p/>
+ * A batch logged via a {@link StatsdLogger} is only held for the duration of the logging call, after which the thread
+ * is free to reset and reuse it. So it must be appended to {@link StatsdLogbackAppender} synchronously, in the logging
+ * thread: if the event is deferred (e.g. by an <code>AsyncAppender</code>), the appender drops the batch rather than
+ * read it while it may be being reused.
+ * <p/>
+ * Sampling for stats added with a sample rate is decided when the stat is added.
+ */
+public class StatsdBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final ThreadLocal<StatsdBatch[]> BATCHES = new ThreadLocal<StatsdBatch[]>() {
+        @Override
+        protected StatsdBatch[] initialValue() {
+            return new StatsdBatch[] {
+                    new StatsdBatch(), new StatsdBatch()
+            };
+        }
+    };
+
+    private StatsdStatType[] types;
+    private String[] keys;
+    private long[] values;
+    private double[] sampleRates;
+    private int size;
+
+    private long timestamp;
+
+    // the number of times this batch is currently queued, waiting to be sent
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public StatsdBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StatsdBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        types = new StatsdStatType[capacity];
+        keys = new String[capacity];
+        values = new long[capacity];
+        sampleRates = new double[capacity];
+    }
+
+    /**
+     * Returns the calling thread's batch, reset ready for use.
+     */
+    public static StatsdBatch forCurrentThread() {
+        StatsdBatch[] batches = BATCHES.get();
+        if (!batches[0].isPending()) {
+            return batches[0].reset();
+        }
+        if (!batches[1].isPending()) {
+            return batches[1].reset();
+        }
+        // both still waiting to be sent, so replace the older one
+        StatsdBatch batch = new StatsdBatch();
+        batches[0] = batches[1];
+        batches[1] = batch;
+        return batch;
+    }
+
+    public StatsdBatch count(String key) {
+        return count(key, 1);
+    }
+
+    public StatsdBatch count(String key, int count) {
+        return count(key, count, 1.0D);
+    }
+
+    public StatsdBatch count(String key, double sampleRate) {
+        return count(key, 1, sampleRate);
+    }
+
+    public StatsdBatch count(String key, int count, double sampleRate) {
+        return stat(StatsdStatType.COUNTER, key, count, sampleRate);
+    }
+
+    public StatsdBatch time(String key, long millis) {
+        return time(key, millis, 1.0D);
+    }
+
+    public StatsdBatch time(String key, long millis, double sampleRate) {
+        return stat(StatsdStatType.TIMER, key, millis, sampleRate);
+    }
+
+    public StatsdBatch gauge(String key, int value) {
+        return stat(StatsdStatType.GAUGE, key, value, 1.0D);
+    }
+
+    public StatsdBatch stat(StatsdStatType type, String key, long value, double sampleRate) {
+        checkNotPending();
+        if (type == null) {
+            throw new IllegalStateException();
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("null key");
+        }
+        if (!StatsdSampler.sample(sampleRate)) {
+            return this;
+        }
+        if (size == types.length) {
+            grow();
+        }
+        types[size] = type;
+        keys[size] = key;
+        values[size] = value;
+        sampleRates[size] = sampleRate;
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if this batch has been submitted, and not yet sent
+     */
+    public boolean isPending() {
+        return pending.get() > 0;
+    }
+
+    public StatsdBatch reset() {
+        checkNotPending();
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StatsdBatch[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(keys[i]).append(':').append(values[i]).append('|').append(types[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    //
+    // used by StatsdClient
+    //
+
+    StatsdStatType type(int i) {
+        return types[i];
+    }
+
+    String key(int i) {
+        return keys[i];
+    }
+
+    long value(int i) {
+        return values[i];
+    }
+
+    double sampleRate(int i) {
+        return sampleRates[i];
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    void submitted(long timestamp) {
+        if (pending.getAndIncrement() == 0) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    void sent() {
+        pending.decrementAndGet();
+    }
+
+    // keeps this batch pending while the submitting thread still reads it after submitting it (e.g. to record its
+    // stats in a snapshot), since the send thread may send it, and so release it for reuse, at any point once submitted
+    void hold() {
+        pending.incrementAndGet();
+    }
+
+    // holds this batch only if it is still pending, e.g. still held by the thread logging it, so that it cannot be
+    // reset and reused while it is being read. Each call that returns true must be balanced by release()
+    boolean holdIfPending() {
+        for (;;) {
+            int count = pending.get();
+            if (count == 0) {
+                return false;
+            }
+            if (pending.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // balances hold()
+    void release() {
+        pending.decrementAndGet();
+    }
+
+    private void checkNotPending() {
+        if (isPending()) {
+            throw new IllegalStateException("batch has been submitted and not yet sent");
+        }
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        sampleRates = Arrays.copyOf(sampleRates, capacity);
+    }
+}
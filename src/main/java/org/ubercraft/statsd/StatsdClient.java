@@ -6,12 +6,14 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Locale;
-import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 
@@ -26,37 +28,60 @@ import org.slf4j.Logger;
  * The <code>queueSize</code> parameter is greater than 0, this instance will operate an asychronous blocking queue of
  * the given size. Instead of sending stats to the server in the calling thread, new stats are enqueued. A background
  * daemon thread watching the queue takes care of sending newly queued stats to the server. In this mode of operation,
- * the {@link #shutdown()} method may be called to cause the background thread to terminate. If the
+ * the {@link #shutdown()} method may be called to cause the background thread to terminate, once it has sent any stats
+ * still queued. If the
  * <code>queueSize</code> parameter is 0 or less, no queueing is performed (and the shutdown() method does nothing).
  * <p/>
+ * When operating with a queue, there is actually one queue lane per {@link StatsdPriority}, each of its own size (the
+ * <code>queueSize</code> parameter sets the size of every lane, or see the constructors taking a size per lane). Stats
+ * are enqueued in the lane of the {@link #getDefaultPriority() default priority}, unless sent with an explicit
+ * priority. The background thread drains the lanes in proportion to their weights, so higher priority stats are sent
+ * sooner, and a flood of lower priority stats fills up (and is dropped from) its own lane only. The number of stats
+ * dropped is counted per lane, see {@link #getDroppedCount(StatsdPriority)}.
+ * <p/>
  * The <code>logger</code> parameter can be used for reporting errors during logging. This class has a set of protected
  * <code>errorXxx(...)</code> methods that are invoked in response to certain error conditions. The default
  * implementations of these method delegate to a single (also protected) {@link #handleError(String, String, Exception)}
  * method. By default this method will log an error level message to the supplier <code>logger</code>. This parameter
  * may be null, in which case no error reporting will be done by default. Users may subclass this class in order to
- * customise error handling for their own requirements.
+ * customise error handling for their own requirements. A stat that cannot be encoded is dropped and reported via
+ * <code>errorSendFailed(...)</code>, without affecting the other stats sent with it.
  * <p/>
  * Once an instance of this class has been created, it may be used to send stats to a listening statsd server. The
  * method to use depends on the type of stat you wish to send. See the <code>count(...)</code>, <code>time(...)</code>
  * and <code>stat(...)</code> methods in their various forms.
  * <p/>
- * When sending a stat to the statsd server, the message is constructed as a Java string and then converted to bytes,
- * normally using the platform default charset. This choice of charset can be overridden by specifying the charset name
- * using the system property: <code>org.ubercraft.statsd.StatsdClient.CHARSET</code>.
+ * When sending a stat to the statsd server, the stat is written directly into the byte buffer of the packet being
+ * sent by a {@link StatsdEncoder}, which determines the wire format. By default the plain statsd format is used, see
+ * {@link #setEncoder(StatsdEncoder)} and {@link StatsdEncoders} for alternatives. Keys are converted to bytes normally
+ * using the platform default charset. This choice of charset can be overridden by specifying the charset name using
+ * the system property: <code>org.ubercraft.statsd.StatsdClient.CHARSET</code>.
+ * <p/>
+ * By default each stat is sent in a packet of its own. If packing is enabled, see {@link #setPacking(boolean)}, the
+ * stats sent together (those queued, by the background thread, or those of a batch) are packed into as few packets as
+ * will fit them (of up to {@link #getMaxPacketSize()} bytes), separated by newlines. Several related stats can be
+ * submitted together, as a single queue entry, using a {@link StatsdBatch}, see {@link #batch()} and
+ * {@link #submit(StatsdBatch)}.
+ * <p/>
+ * When operating with a queue, an optional {@link StatsdSpillBuffer} may be set via
+ * {@link #setSpillBuffer(StatsdSpillBuffer)}. Stats that do not fit in the queue, or that fail to send, are then
+ * spilled to that buffer instead of being dropped, and are replayed by the background thread, in between the stats
+ * queued since, at no more than {@link #getSpillReplayRate()} stats per second.
+ * <p/>
+ * An optional {@link StatsdSnapshot} may be set via {@link #setSnapshot(StatsdSnapshot)}, to keep an in-process view of
+ * the stats recently sent (or enqueued for sending) through this instance.
  */
 public class StatsdClient {
 
     public static final int DEFAULT_PORT = 8125;
 
-    private static final String COUNTER_FORMAT = "%s:%d|c";
-    private static final String TIMER_FORMAT = "%s:%d|ms";
-    private static final String GAUGE_FORMAT = "%s:%d|g";
+    public static final int DEFAULT_MAX_PACKET_SIZE = 512;
 
-    private static final String SAMPLE_RATE_FORMAT = "%s|@%f";
+    public static final int DEFAULT_SPILL_REPLAY_RATE = 1000;
 
     private static final String CHARSET_SYS_PROP = "org.ubercraft.statsd.StatsdClient.CHARSET";
 
-    private static final Charset CHARSET;
+    static final Charset CHARSET;
 
     static {
         Charset charset = null;
@@ -75,8 +100,6 @@ public class StatsdClient {
         CHARSET = charset;
     }
 
-    private static final Random RANDOM = new Random();
-
     protected final InetAddress host;
     protected final int port;
 
@@ -86,11 +109,49 @@ public class StatsdClient {
 
     private final String hostPortString;
 
-    private final BlockingQueue<String> queue;
+    // the order in which the send thread visits the lanes, according to their weights
+    private static final StatsdPriority[] SCHEDULE = schedule();
+
+    private final Lane[] lanes; // indexed by priority ordinal
+
+    // the number of entries in all the lanes
+    private final Semaphore available = new Semaphore(0);
+
+    // true if a subclass overrides the deprecated sendToServer(String)
+    private final boolean legacySendToServer;
 
-    private SendThread thread;
+    private volatile SendThread thread;
     private long queueOfferTimeout = 0;
 
+    private volatile StatsdPriority defaultPriority = StatsdPriority.NORMAL;
+
+    private volatile StatsdEncoder encoder = StatsdEncoders.STATSD;
+    private volatile int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+    private volatile boolean packing;
+
+    private volatile StatsdSpillBuffer spillBuffer;
+    private volatile int spillReplayRate = DEFAULT_SPILL_REPLAY_RATE;
+
+    private volatile StatsdSnapshot snapshot;
+
+    // per thread packet buffers, for sending in the calling thread (or spilling)
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    // per thread buffers for describing stats as strings, for error reporting
+    private final ThreadLocal<ByteBuffer> descriptions = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1024);
+        }
+    };
+
+    private final ThreadLocal<DatagramPacket> datagrams = new ThreadLocal<DatagramPacket>() {
+        @Override
+        protected DatagramPacket initialValue() {
+            return new DatagramPacket(new byte[0], 0, host, port);
+        }
+    };
+
     public StatsdClient(String host, int port) throws UnknownHostException, SocketException {
         this(host, port, null, 0);
     }
@@ -120,6 +181,20 @@ public class StatsdClient {
     }
 
     public StatsdClient(InetAddress host, int port, Logger logger, int queueSize) throws SocketException {
+        this(host, port, logger, queueSize, queueSize, queueSize);
+    }
+
+    public StatsdClient(String host, int port, Logger logger, int highQueueSize, int normalQueueSize,
+            int lowQueueSize) throws UnknownHostException, SocketException {
+        this(InetAddress.getByName(host), port, logger, highQueueSize, normalQueueSize, lowQueueSize);
+    }
+
+    /**
+     * Creates an instance with queue lanes of the given sizes. Either all the sizes must be greater than 0, or all 0 or
+     * less for no queueing.
+     */
+    public StatsdClient(InetAddress host, int port, Logger logger, int highQueueSize, int normalQueueSize,
+            int lowQueueSize) throws SocketException {
         if (host == null) {
             throw new IllegalArgumentException("null host");
         }
@@ -136,15 +211,24 @@ public class StatsdClient {
         this.logger = logger;
         this.hostPortString = host + ":" + port;
 
-        if (queueSize > 0) {
-            queue = new ArrayBlockingQueue<String>(queueSize);
+        this.legacySendToServer = overridesLegacySendToServer(getClass());
+
+        if (highQueueSize > 0 && normalQueueSize > 0 && lowQueueSize > 0) {
+            lanes = new Lane[] {
+                    new Lane(highQueueSize), new Lane(normalQueueSize), new Lane(lowQueueSize)
+            };
             thread = new SendThread();
             thread.start();
         }
-        else {
-            queue = null;
+        else if (highQueueSize <= 0 && normalQueueSize <= 0 && lowQueueSize <= 0) {
+            lanes = null;
             thread = null;
         }
+        else {
+            sock.close();
+            throw new IllegalArgumentException("queue sizes must be all positive, or none: " + //
+                    highQueueSize + ", " + normalQueueSize + ", " + lowQueueSize);
+        }
     }
 
     @Override
@@ -160,15 +244,157 @@ public class StatsdClient {
         this.queueOfferTimeout = queueOfferTimeout;
     }
 
+    public StatsdPriority getDefaultPriority() {
+        return defaultPriority;
+    }
+
+    /**
+     * Sets the priority of the lane that stats sent without an explicit priority are enqueued in, NORMAL by default.
+     */
+    public void setDefaultPriority(StatsdPriority defaultPriority) {
+        if (defaultPriority == null) {
+            throw new IllegalArgumentException("null priority");
+        }
+        this.defaultPriority = defaultPriority;
+    }
+
+    /**
+     * @return the number of stats dropped from the lane of the given priority, because it was full (and they could not
+     * be spilled), or could not be enqueued
+     */
+    public long getDroppedCount(StatsdPriority priority) {
+        return lanes != null ? lanes[priority.ordinal()].dropped.get() : 0;
+    }
+
+    public StatsdEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Sets the encoder used to write stats in the wire format of the backend, see {@link StatsdEncoders}.
+     */
+    public void setEncoder(StatsdEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("null encoder");
+        }
+        this.encoder = encoder;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of each packet sent. Stats that do not fit in a packet on their own are dropped.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        if (maxPacketSize <= 0) {
+            throw new IllegalArgumentException("max packet size must be positive: " + maxPacketSize);
+        }
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public boolean isPacking() {
+        return packing;
+    }
+
+    /**
+     * Sets whether several stats may be sent in one packet, separated by newlines, rather than one stat per packet (the
+     * default). Packing sends far fewer packets, but not all statsd servers accept multi-stat packets.
+     */
+    public void setPacking(boolean packing) {
+        this.packing = packing;
+    }
+
+    public StatsdSpillBuffer getSpillBuffer() {
+        return spillBuffer;
+    }
+
+    /**
+     * Sets the buffer used to hold stats that overflow the queue, or null for none (the default). Has no effect if this
+     * instance is not operating with a queue.
+     */
+    public void setSpillBuffer(StatsdSpillBuffer spillBuffer) {
+        this.spillBuffer = spillBuffer;
+    }
+
+    public int getSpillReplayRate() {
+        return spillReplayRate;
+    }
+
+    /**
+     * Sets the maximum number of spilled stats replayed per second.
+     */
+    public void setSpillReplayRate(int spillReplayRate) {
+        if (spillReplayRate <= 0) {
+            throw new IllegalArgumentException("spill replay rate must be positive: " + spillReplayRate);
+        }
+        this.spillReplayRate = spillReplayRate;
+    }
+
+    public StatsdSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Sets the snapshot that records every stat sent through this instance (after sampling), or null for none (the
+     * default). A stat is recorded once it has been sent, or when operating with a queue, once it has been enqueued
+     * (or spilled); stats dropped because they could not be sent or enqueued are not recorded.
+     */
+    public void setSnapshot(StatsdSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Stops the background thread, if any. Stats still queued are sent by the background thread before it terminates.
+     */
     public void shutdown() {
+        SendThread thread = this.thread;
         if (thread != null) {
+            this.thread = null;
             thread.interrupt();
-            thread = null;
+        }
+    }
+
+    /**
+     * Shuts down this instance, passing on any stats still queued to the given client rather than sending them, and
+     * any stats spilled to the given client's spill buffer, if it has one of its own.
+     */
+    void handOver(StatsdClient client) {
+        SendThread thread = this.thread;
+        if (thread != null) {
+            thread.drainOnShutdown = false;
+        }
+        shutdown();
+        if (lanes != null) {
+            for (StatsdPriority priority : StatsdPriority.values()) {
+                Object entry;
+                while ((entry = lanes[priority.ordinal()].queue.poll()) != null) {
+                    client.send(priority, entry);
+                }
+            }
+        }
+        StatsdSpillBuffer spillBuffer = this.spillBuffer;
+        StatsdSpillBuffer clientSpillBuffer = client.spillBuffer;
+        if (spillBuffer != null && clientSpillBuffer != null && spillBuffer != clientSpillBuffer) {
+            spillBuffer.drainTo(clientSpillBuffer);
         }
     }
 
     private class SendThread extends Thread {
 
+        private ByteBuffer buffer;
+
+        // the position in the schedule
+        private int turn;
+
+        // false if the queued stats are being handed over to another client instead
+        volatile boolean drainOnShutdown = true;
+
+        // the number of spilled stats that may be replayed now, topped up at the replay rate, see replayBudget()
+        private double replayTokens;
+        private long replayRefilled = System.nanoTime();
+
         SendThread() {
             setDaemon(true);
         }
@@ -177,12 +403,133 @@ public class StatsdClient {
         public void run() {
             try {
                 while (thread != null) {
-                    doSend(queue.take());
+                    try {
+                        sendNext();
+                    }
+                    catch (RuntimeException e) {
+                        // failures are handled per stat, so this is unexpected, but it must not stop the thread
+                        buffer = null;
+                        errorSendFailed(null, e);
+                    }
                 }
             }
             catch (InterruptedException e) {
                 // done;
             }
+            if (drainOnShutdown) {
+                drain();
+            }
+        }
+
+        // waits for queued stats and sends them, then replays as many spilled stats as the replay rate allows
+        private void sendNext() throws InterruptedException {
+            StatsdSpillBuffer spillBuffer = StatsdClient.this.spillBuffer;
+            if (spillBuffer == null || spillBuffer.isEmpty()) {
+                available.acquire();
+            }
+            else if (!available.tryAcquire(Math.max(1000 / spillReplayRate, 1), TimeUnit.MILLISECONDS)) {
+                buffer = buffer(buffer);
+                replay(spillBuffer);
+                return;
+            }
+
+            Object entry = poll();
+            if (entry == null) {
+                // the lanes were drained by a hand over
+                return;
+            }
+
+            buffer = buffer(buffer);
+
+            // pack the entry, and any others queued behind it, into as few packets as possible
+            do {
+                pack(buffer, entry, true);
+            }
+            while (available.tryAcquire() && (entry = poll()) != null);
+
+            flush(buffer, true);
+
+            // replay as soon as the queue is caught up, not only once it stays idle for a while, or a steady flow of
+            // new stats would starve the spilled ones until they expire
+            spillBuffer = StatsdClient.this.spillBuffer;
+            if (spillBuffer != null && available.availablePermits() == 0 && !spillBuffer.isEmpty()) {
+                replay(spillBuffer);
+            }
+        }
+
+        // the number of spilled stats that may be replayed now, accrued at the replay rate, up to a second's worth
+        private int replayBudget() {
+            long now = System.nanoTime();
+            int rate = spillReplayRate;
+            replayTokens = Math.min(replayTokens + (now - replayRefilled) * rate / 1e9D, rate);
+            replayRefilled = now;
+            return (int)replayTokens;
+        }
+
+        // sends everything still queued, without waiting for more
+        private void drain() {
+            buffer = buffer(buffer);
+            Object entry;
+            while (available.tryAcquire() && (entry = poll()) != null) {
+                pack(buffer, entry, false);
+            }
+            flush(buffer, false);
+        }
+
+        // takes an entry from the next non-empty lane in the schedule
+        private Object poll() {
+            for (int i = 0; i < SCHEDULE.length; i++) {
+                Lane lane = lanes[SCHEDULE[turn].ordinal()];
+                turn = (turn + 1) % SCHEDULE.length;
+                Object entry = lane.queue.poll();
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private void replay(StatsdSpillBuffer spillBuffer) {
+            int count = replayBudget();
+            if (count == 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                int mark = buffer.position();
+                if (mark > 0) {
+                    if (!packing || !buffer.hasRemaining()) {
+                        // one stat per packet, or full, without even room for a separator
+                        flush(buffer, false);
+                        mark = 0;
+                    }
+                    else {
+                        buffer.put((byte)'\n');
+                    }
+                }
+                int length = spillBuffer.poll(buffer, now);
+                if (length > 0) {
+                    replayTokens--;
+                    continue;
+                }
+                buffer.position(mark);
+                if (length == 0) {
+                    break;
+                }
+                if (mark > 0) {
+                    // doesn't fit behind what we have so far, so send that first and try again
+                    flush(buffer, false);
+                    i--;
+                }
+                else {
+                    // doesn't fit in a packet at all, which can only happen if the max packet size was reduced
+                    byte[] data = spillBuffer.poll(now);
+                    replayTokens--;
+                    errorSendFailed(new String(data, CHARSET), new BufferOverflowException());
+                }
+            }
+            // a replayed stat gets one more chance only, it is not spilled again if it fails
+            flush(buffer, false);
         }
     }
 
@@ -215,78 +562,363 @@ public class StatsdClient {
     }
 
     public boolean stat(StatsdStatType type, String key, long value, double sampleRate) {
-        String format;
-        switch (type) {
-            case COUNTER:
-                format = COUNTER_FORMAT;
-                break;
-            case TIMER:
-                format = TIMER_FORMAT;
-                break;
-            case GAUGE:
-                format = GAUGE_FORMAT;
-                break;
-            default:
-                throw new IllegalStateException();
-        }
-        String stat = String.format(format, key, value);
-        return send(stat, sampleRate);
-    }
-
-    private boolean send(String stat, double sampleRate) {
-        if (sampleRate < 1.0D) {
-            if (RANDOM.nextDouble() <= sampleRate) {
-                stat = String.format( //
-                        Locale.US, // To use "." in "%f" disregarding the system locale
-                        SAMPLE_RATE_FORMAT, //
-                        stat, //
-                        sampleRate);
-                return send(stat);
-            }
-            else {
+        if (!StatsdSampler.sample(sampleRate)) {
+            return false;
+        }
+        return send(type, key, value, sampleRate);
+    }
+
+    /**
+     * Sends a stat for which the sampling decision has already been made (i.e. it was kept), so unlike
+     * {@link #stat(StatsdStatType, String, long, double)} no further sampling is done. The sample rate is still sent
+     * along with the stat.
+     *
+     * @see StatsdSampler
+     */
+    public boolean send(StatsdStatType type, String key, long value, double sampleRate) {
+        return send(defaultPriority, type, key, value, sampleRate);
+    }
+
+    /**
+     * As {@link #send(StatsdStatType, String, long, double)}, enqueuing the stat in the lane of the given priority.
+     */
+    public boolean send(StatsdPriority priority, StatsdStatType type, String key, long value, double sampleRate) {
+        if (type == null) {
+            throw new IllegalStateException();
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("null key");
+        }
+        long timestamp = System.currentTimeMillis();
+        boolean sent;
+        if (lanes == null) {
+            // send in the calling thread, straight from the arguments
+            ByteBuffer buffer = buffer();
+            boolean packed = pack(buffer, type, key, value, sampleRate, timestamp, false);
+            sent = flush(buffer, false) && packed;
+        }
+        else {
+            sent = send(priority, new Stat(type, key, value, sampleRate, timestamp));
+        }
+        StatsdSnapshot snapshot = this.snapshot;
+        if (sent && snapshot != null) {
+            snapshot.record(type, key, value, sampleRate, timestamp);
+        }
+        return sent;
+    }
+
+    // true if stats are sent by the background thread, false if they are sent by the calling thread
+    boolean isQueued() {
+        return lanes != null;
+    }
+
+    /**
+     * Returns the calling thread's reusable batch, emptied ready for use.
+     *
+     * @see StatsdBatch#forCurrentThread()
+     */
+    public StatsdBatch batch() {
+        return StatsdBatch.forCurrentThread();
+    }
+
+    /**
+     * Submits all the stats in the given batch together. When operating with a queue, the batch is enqueued as a single
+     * entry, and must not be modified until it has been sent.
+     */
+    public boolean submit(StatsdBatch batch) {
+        return submit(defaultPriority, batch);
+    }
+
+    /**
+     * As {@link #submit(StatsdBatch)}, enqueuing the batch in the lane of the given priority.
+     */
+    public boolean submit(StatsdPriority priority, StatsdBatch batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        long timestamp = System.currentTimeMillis();
+        StatsdSnapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            batch.submitted(timestamp);
+            return send(priority, batch);
+        }
+        batch.submitted(timestamp);
+        batch.hold();
+        try {
+            if (!send(priority, batch)) {
                 return false;
             }
+            for (int i = 0; i < batch.size(); i++) {
+                snapshot.record(batch.type(i), batch.key(i), batch.value(i), batch.sampleRate(i), timestamp);
+            }
+            return true;
         }
-        else {
-            return send(stat);
+        finally {
+            batch.release();
         }
     }
 
-    private boolean send(String stat) {
-        if (queue != null) {
+    private boolean send(StatsdPriority priority, Object entry) {
+        if (lanes != null) {
+            Lane lane = lanes[priority.ordinal()];
             try {
-                if (queue.offer(stat, queueOfferTimeout, TimeUnit.MILLISECONDS)) {
+                if (lane.queue.offer(entry, queueOfferTimeout, TimeUnit.MILLISECONDS)) {
+                    available.release();
                     return true;
                 }
             }
             catch (Exception e) {
-                errorEnqueueFailed(stat, e);
+                lane.dropped.addAndGet(size(entry));
+                sent(entry);
+                errorEnqueueFailed(describe(entry), e);
                 return false;
             }
-            errorQueueFull(stat);
+            boolean spilled = spill(entry);
+            if (!spilled) {
+                lane.dropped.addAndGet(size(entry));
+            }
+            sent(entry);
+            if (spilled) {
+                return true;
+            }
+            if (isQueueFullReported()) {
+                errorQueueFull(describe(entry));
+            }
             return false;
         }
         else {
-            return doSend(stat);
+            ByteBuffer buffer = buffer();
+            boolean packed = pack(buffer, entry, false);
+            return flush(buffer, false) && packed;
+        }
+    }
+
+    // the number of stats in the entry
+    private static int size(Object entry) {
+        return entry instanceof StatsdBatch ? ((StatsdBatch)entry).size() : 1;
+    }
+
+    // marks a batch as no longer pending, after it has been sent (or dropped)
+    private static void sent(Object entry) {
+        if (entry instanceof StatsdBatch) {
+            ((StatsdBatch)entry).sent();
         }
     }
 
-    private boolean doSend(String stat) {
+    // returns the calling thread's buffer, cleared
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = buffers.get();
+        ByteBuffer cleared = buffer(buffer);
+        if (cleared != buffer) {
+            buffers.set(cleared);
+        }
+        return cleared;
+    }
+
+    // returns a cleared buffer of the current max packet size, reusing the given buffer if possible
+    private ByteBuffer buffer(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != maxPacketSize) {
+            return ByteBuffer.allocate(maxPacketSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // appends all the stats of the entry to the buffer, flushing it whenever it fills up (or before each stat, unless
+    // packing)
+    private boolean pack(ByteBuffer buffer, Object entry, boolean spillOnFailure) {
+        if (entry instanceof Stat) {
+            Stat stat = (Stat)entry;
+            return pack(buffer, stat.type, stat.key, stat.value, stat.sampleRate, stat.timestamp, spillOnFailure);
+        }
+        StatsdBatch batch = (StatsdBatch)entry;
+        try {
+            boolean packed = true;
+            for (int i = 0; i < batch.size(); i++) {
+                packed &= pack(buffer, batch.type(i), batch.key(i), batch.value(i), batch.sampleRate(i), //
+                        batch.timestamp(), spillOnFailure);
+            }
+            return packed;
+        }
+        finally {
+            batch.sent();
+        }
+    }
+
+    private boolean pack(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate,
+            long timestamp, boolean spillOnFailure) {
+        // unless packing, the stats before are sent first, and the result counts towards this one
+        boolean flushed = packing || flush(buffer, spillOnFailure);
+        Exception failure;
+        try {
+            if (append(buffer, type, key, value, sampleRate, timestamp)) {
+                return flushed;
+            }
+            flush(buffer, spillOnFailure);
+            if (append(buffer, type, key, value, sampleRate, timestamp)) {
+                return flushed;
+            }
+            failure = new BufferOverflowException();
+        }
+        catch (RuntimeException e) {
+            // e.g. from a custom encoder, the stat is dropped but the others are still sent
+            failure = e;
+        }
+        errorSendFailed(describe(type, key, value, sampleRate, timestamp), failure);
+        return false;
+    }
+
+    // appends the stat to the buffer (after a separator if not empty), returns false if the stat did not fit, and
+    // leaves the buffer as it was if the stat could not be appended
+    private boolean append(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate,
+            long timestamp) {
+        int mark = buffer.position();
+        try {
+            if (mark > 0) {
+                buffer.put((byte)'\n');
+            }
+            encoder.encode(buffer, type, key, value, sampleRate, timestamp);
+            return true;
+        }
+        catch (BufferOverflowException e) {
+            buffer.position(mark);
+            return false;
+        }
+        catch (RuntimeException e) {
+            buffer.position(mark);
+            throw e;
+        }
+    }
+
+    // sends whatever is in the buffer, and clears it
+    private boolean flush(ByteBuffer buffer, boolean spillOnFailure) {
+        if (buffer.position() == 0) {
+            return true;
+        }
+        buffer.flip();
         try {
-            sendToServer(stat);
+            sendToServer(buffer);
             return true;
         }
         catch (Exception e) {
-            errorSendFailed(stat, e);
+            StatsdSpillBuffer spillBuffer = this.spillBuffer;
+            if (spillOnFailure && spillBuffer != null && //
+                    spillBuffer.offer(buffer.array(), 0, buffer.limit(), System.currentTimeMillis())) {
+                return false;
+            }
+            errorSendFailed(new String(buffer.array(), 0, buffer.limit(), CHARSET), e);
+            return false;
+        }
+        finally {
+            buffer.clear();
+        }
+    }
+
+    // spills the stats of the entry, returns false if there is no spill buffer, or if any stat could not be spilled
+    private boolean spill(Object entry) {
+        StatsdSpillBuffer spillBuffer = this.spillBuffer;
+        if (spillBuffer == null) {
             return false;
         }
+        ByteBuffer buffer = buffer();
+        if (entry instanceof Stat) {
+            Stat stat = (Stat)entry;
+            return spill(spillBuffer, buffer, stat.type, stat.key, stat.value, stat.sampleRate, stat.timestamp);
+        }
+        StatsdBatch batch = (StatsdBatch)entry;
+        boolean spilled = true;
+        for (int i = 0; i < batch.size(); i++) {
+            spilled &= spill(spillBuffer, buffer, batch.type(i), batch.key(i), batch.value(i), batch.sampleRate(i), //
+                    batch.timestamp());
+        }
+        return spilled;
+    }
+
+    private boolean spill(StatsdSpillBuffer spillBuffer, ByteBuffer buffer, StatsdStatType type, String key,
+            long value, double sampleRate, long timestamp) {
+        buffer.clear();
+        try {
+            return append(buffer, type, key, value, sampleRate, timestamp) && //
+                    spillBuffer.offer(buffer.array(), 0, buffer.position(), timestamp);
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // encodes the entry as a string, for error reporting
+    private String describe(Object entry) {
+        if (entry instanceof Stat) {
+            Stat stat = (Stat)entry;
+            return describe(stat.type, stat.key, stat.value, stat.sampleRate, stat.timestamp);
+        }
+        StatsdBatch batch = (StatsdBatch)entry;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(describe(batch.type(i), batch.key(i), batch.value(i), batch.sampleRate(i), batch.timestamp()));
+        }
+        return sb.toString();
+    }
+
+    private String describe(StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        ByteBuffer buffer = descriptions.get();
+        if (buffer.capacity() < maxPacketSize) {
+            buffer = ByteBuffer.allocate(maxPacketSize);
+            descriptions.set(buffer);
+        }
+        buffer.clear();
+        try {
+            encoder.encode(buffer, type, key, value, sampleRate, timestamp);
+        }
+        catch (BufferOverflowException e) {
+            // truncated
+        }
+        catch (RuntimeException e) {
+            // the encoder can't encode it, which may be why it's being described
+            return key + ":" + value + "|" + type;
+        }
+        return new String(buffer.array(), 0, buffer.position(), CHARSET);
+    }
+
+    /**
+     * Sends a packet to the statsd server. The packet data is between the given buffer's position and its limit.
+     */
+    protected void sendToServer(ByteBuffer packet) throws IOException {
+        if (legacySendToServer) {
+            sendToServer(new String(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining(), //
+                    CHARSET));
+            return;
+        }
+        DatagramPacket datagram = datagrams.get();
+        datagram.setData(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+        sock.send(datagram);
     }
 
+    /**
+     * Sends a packet to the statsd server. Only called if overridden by a subclass (and
+     * {@link #sendToServer(ByteBuffer)} is not), in which case each packet is converted to a string first.
+     *
+     * @deprecated override {@link #sendToServer(ByteBuffer)} instead, which does not allocate
+     */
+    @Deprecated
     protected void sendToServer(String stat) throws IOException {
         byte[] data = stat.getBytes(CHARSET);
         sock.send(new DatagramPacket(data, data.length, host, port));
     }
 
+    /**
+     * Returns whether {@link #errorQueueFull(String)} should be called for a stat dropped because the queue is full.
+     * Describing the stat for the error allocates, so this is checked first, as stats may be dropped at a high rate
+     * while the queue is full. By default true, unless the error would only be logged and the logger is not enabled
+     * for errors.
+     */
+    protected boolean isQueueFullReported() {
+        return getClass() != StatsdClient.class || logger != null && logger.isErrorEnabled();
+    }
+
     protected void errorQueueFull(String stat) {
         handleError("Queue full", stat, null);
     }
@@ -306,4 +938,71 @@ public class StatsdClient {
             });
         }
     }
+
+    private static boolean overridesLegacySendToServer(Class<?> type) {
+        for (; type != StatsdClient.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod("sendToServer", ByteBuffer.class);
+                return false;
+            }
+            catch (NoSuchMethodException e) {
+                // not overridden here
+            }
+            try {
+                type.getDeclaredMethod("sendToServer", String.class);
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+                // not overridden here
+            }
+        }
+        return false;
+    }
+
+    private static StatsdPriority[] schedule() {
+        // interleave the priorities, so that each round visits a lane as many times as its weight
+        int length = 0;
+        for (StatsdPriority priority : StatsdPriority.values()) {
+            length += priority.getWeight();
+        }
+        StatsdPriority[] schedule = new StatsdPriority[length];
+        int[] visits = new int[StatsdPriority.values().length];
+        for (int i = 0; i < length; i++) {
+            for (StatsdPriority priority : StatsdPriority.values()) {
+                if (visits[priority.ordinal()] * length <= i * priority.getWeight()) {
+                    visits[priority.ordinal()]++;
+                    schedule[i] = priority;
+                    break;
+                }
+            }
+        }
+        return schedule;
+    }
+
+    private static final class Lane {
+
+        final BlockingQueue<Object> queue; // of Stat or StatsdBatch
+        final AtomicLong dropped = new AtomicLong();
+
+        Lane(int size) {
+            queue = new ArrayBlockingQueue<Object>(size);
+        }
+    }
+
+    private static final class Stat {
+
+        final StatsdStatType type;
+        final String key;
+        final long value;
+        final double sampleRate;
+        final long timestamp;
+
+        Stat(StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.sampleRate = sampleRate;
+            this.timestamp = timestamp;
+        }
+    }
 }
@@ -0,0 +1,272 @@
+package org.ubercraft.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A registry of shared, reference counted {@link StatsdClient} instances. Used by the logback appenders so that
+ * several appenders sending to the same statsd server with the same settings share one client, and so one socket,
+ * queue and send thread.
+ * <p/>
+ * Clients are registered by a key, which should identify both the endpoint and all the settings of the client. Each
+ * call to {@link #acquire(String, String, String, Factory)} must be balanced by a call to
+ * {@link #release(StatsdClient)}. When a client is released for the last time it is not shut down straight away, but
+ * lingers for a while (see {@link #setLinger(long)}). This allows for logging reconfiguration, where appenders are
+ * stopped and then new ones started: if a client with the same key is acquired during the linger period, the live
+ * client is simply reused. If an appender whose settings have changed acquires a client for the same endpoint
+ * instead, any stats still queued in the client it used before are handed over to the new client rather than dropped.
+ * This only happens if that appender was the lingering client's only owner, as identified by the <code>owner</code>
+ * passed to acquire; a client that was shared with other appenders is left to expire, in case they come back.
+ * <p/>
+ * Spill buffers are shared in the same way, by file, see {@link #acquireSpillBuffer(File, int, long)}, since a spill
+ * file can only be open once. So a client that replaces another with the same spill file takes over the stats spilled
+ * there, as does one with a different spill file when the previous client is handed over.
+ */
+public final class StatsdClientRegistry {
+
+    public static final long DEFAULT_LINGER = 5000;
+
+    /**
+     * Creates a client, when there is no registered client for a given key.
+     */
+    public interface Factory {
+
+        StatsdClient create() throws Exception;
+    }
+
+    private static final Map<String, Entry> CLIENTS = new HashMap<String, Entry>();
+
+    private static final Map<File, SpillEntry> SPILL_BUFFERS = new HashMap<File, SpillEntry>();
+
+    private static long linger = DEFAULT_LINGER;
+
+    private static Timer timer;
+
+    private StatsdClientRegistry() {}
+
+    public static synchronized long getLinger() {
+        return linger;
+    }
+
+    /**
+     * Sets the time in milliseconds that a client lingers after it has been released for the last time.
+     */
+    public static synchronized void setLinger(long linger) {
+        StatsdClientRegistry.linger = linger;
+    }
+
+    /**
+     * Returns the client registered with the given key, creating and registering one with the given factory if
+     * necessary.
+     *
+     * @param key identifies the endpoint and settings of the client
+     * @param endpoint identifies the endpoint only, for handing over queued stats from lingering clients
+     * @param owner identifies the user of the client (e.g. an appender, by its name), for handing over queued stats
+     * from lingering clients, or null for none
+     * @param factory creates a new client if required
+     */
+    public static synchronized StatsdClient acquire(String key, String endpoint, String owner, Factory factory)
+            throws Exception {
+        Entry entry = CLIENTS.get(key);
+        if (entry != null) {
+            entry.refs++;
+            entry.owners.add(owner);
+            entry.cancelLinger();
+            stopTimerIfIdle();
+            return entry.client;
+        }
+
+        entry = new Entry(key, endpoint, factory.create());
+        entry.owners.add(owner);
+
+        Set<String> owners = Collections.singleton(owner);
+        for (Iterator<Entry> it = CLIENTS.values().iterator(); it.hasNext();) {
+            Entry lingering = it.next();
+            if (owner != null && lingering.refs == 0 && lingering.endpoint.equals(endpoint) && //
+                    lingering.owners.equals(owners)) {
+                it.remove();
+                lingering.cancelLinger();
+                lingering.client.handOver(entry.client);
+                close(lingering.client);
+            }
+        }
+        stopTimerIfIdle();
+
+        CLIENTS.put(key, entry);
+        return entry.client;
+    }
+
+    /**
+     * Releases a client previously returned by {@link #acquire(String, String, String, Factory)}.
+     */
+    public static synchronized void release(StatsdClient client) {
+        for (final Entry entry : CLIENTS.values()) {
+            if (entry.client == client) {
+                if (--entry.refs == 0) {
+                    if (linger > 0) {
+                        entry.linger = new TimerTask() {
+                            @Override
+                            public void run() {
+                                expire(entry);
+                            }
+                        };
+                        timer().schedule(entry.linger, linger);
+                    }
+                    else {
+                        expire(entry);
+                    }
+                }
+                return;
+            }
+        }
+        // not registered
+        close(client);
+    }
+
+    private static synchronized void expire(Entry entry) {
+        if (entry.refs == 0 && CLIENTS.get(entry.key) == entry) {
+            CLIENTS.remove(entry.key);
+            entry.linger = null;
+            close(entry.client);
+        }
+        stopTimerIfIdle();
+    }
+
+    private static void close(StatsdClient client) {
+        client.shutdown();
+        StatsdSnapshot snapshot = client.getSnapshot();
+        if (snapshot != null) {
+            snapshot.unregister();
+        }
+        StatsdSpillBuffer spillBuffer = client.getSpillBuffer();
+        if (spillBuffer != null) {
+            client.setSpillBuffer(null);
+            releaseSpillBuffer(spillBuffer);
+        }
+    }
+
+    /**
+     * Returns the spill buffer open on the given file, opening one with the given settings if necessary. If the file is
+     * already open, its buffer is shared, with the settings it was opened with. Each call must be balanced by a call to
+     * {@link #releaseSpillBuffer(StatsdSpillBuffer)}, which clients acquired from this registry do when they are
+     * closed.
+     */
+    public static synchronized StatsdSpillBuffer acquireSpillBuffer(File file, int capacity, long maxAge)
+            throws IOException {
+        File key = file.getCanonicalFile();
+        SpillEntry entry = SPILL_BUFFERS.get(key);
+        if (entry != null) {
+            entry.refs++;
+            return entry.buffer;
+        }
+        entry = new SpillEntry(new StatsdSpillBuffer(file, capacity, maxAge));
+        SPILL_BUFFERS.put(key, entry);
+        return entry.buffer;
+    }
+
+    /**
+     * Releases a spill buffer previously returned by {@link #acquireSpillBuffer(File, int, long)}, closing it (and so
+     * dropping any stats still spilled there) when released for the last time.
+     */
+    public static synchronized void releaseSpillBuffer(StatsdSpillBuffer buffer) {
+        for (Iterator<SpillEntry> it = SPILL_BUFFERS.values().iterator(); it.hasNext();) {
+            SpillEntry entry = it.next();
+            if (entry.buffer == buffer) {
+                if (--entry.refs > 0) {
+                    return;
+                }
+                it.remove();
+                break;
+            }
+        }
+        buffer.unregister();
+        try {
+            buffer.close();
+        }
+        catch (IOException e) {
+            // ignored
+        }
+    }
+
+    private static Timer timer() {
+        if (timer == null) {
+            timer = new Timer("statsd-client-registry", true);
+        }
+        return timer;
+    }
+
+    // stops the timer thread while no clients are lingering, it is started again when needed
+    private static void stopTimerIfIdle() {
+        if (timer == null) {
+            return;
+        }
+        for (Entry entry : CLIENTS.values()) {
+            if (entry.linger != null) {
+                return;
+            }
+        }
+        timer.cancel();
+        timer = null;
+    }
+
+    // for tests
+    static synchronized boolean isTimerRunning() {
+        return timer != null;
+    }
+
+    // for tests, closes all lingering clients now
+    static synchronized void expireAll() {
+        for (Entry entry : new ArrayList<Entry>(CLIENTS.values())) {
+            if (entry.refs == 0) {
+                entry.cancelLinger();
+                expire(entry);
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final String key;
+        final String endpoint;
+        final StatsdClient client;
+
+        // all that have acquired the client
+        final Set<String> owners = new HashSet<String>();
+
+        int refs = 1;
+        TimerTask linger;
+
+        Entry(String key, String endpoint, StatsdClient client) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.client = client;
+        }
+
+        void cancelLinger() {
+            if (linger != null) {
+                linger.cancel();
+                linger = null;
+            }
+        }
+    }
+
+    private static class SpillEntry {
+
+        final StatsdSpillBuffer buffer;
+
+        int refs = 1;
+
+        SpillEntry(StatsdSpillBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
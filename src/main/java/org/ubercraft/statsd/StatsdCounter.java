@@ -12,6 +12,8 @@ public interface StatsdCounter extends StatsdLoggerIBase {
 
     void infoCount(int count, double sampleRate);
 
+    void infoCount(int count, double sampleRate, long sampleId);
+
     // Debug level
 
     void debugCount();
@@ -22,6 +24,8 @@ public interface StatsdCounter extends StatsdLoggerIBase {
 
     void debugCount(int count, double sampleRate);
 
+    void debugCount(int count, double sampleRate, long sampleId);
+
     // Trace level
 
     void traceCount();
@@ -31,4 +35,6 @@ public interface StatsdCounter extends StatsdLoggerIBase {
     void traceCount(double sampleRate);
 
     void traceCount(int count, double sampleRate);
+
+    void traceCount(int count, double sampleRate, long sampleId);
 }
@@ -0,0 +1,37 @@
+package org.ubercraft.statsd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes stats in the DogStatsD format, which extends the plain statsd format with tags, i.e.
+ * <code>&lt;key&gt;:&lt;value&gt;|&lt;type&gt;[|@&lt;rate&gt;][|#&lt;tag&gt;,...]</code>. The tags are fixed when
+ * the encoder is created, and are added to every stat.
+ *
+ * @see StatsdEncoders#DOGSTATSD
+ */
+public class StatsdDogEncoder extends StatsdPlainEncoder {
+
+    private final byte[] tags;
+
+    public StatsdDogEncoder(String... tags) {
+        if (tags == null || tags.length == 0) {
+            this.tags = new byte[0];
+        }
+        else {
+            StringBuilder sb = new StringBuilder("|#");
+            for (int i = 0; i < tags.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(tags[i].trim());
+            }
+            this.tags = sb.toString().getBytes(StatsdClient.CHARSET);
+        }
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        super.encode(buffer, type, key, value, sampleRate, timestamp);
+        buffer.put(tags);
+    }
+}
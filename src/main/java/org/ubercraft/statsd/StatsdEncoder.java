@@ -0,0 +1,27 @@
+package org.ubercraft.statsd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes stats into the wire format understood by a particular metrics backend. Used by {@link StatsdClient} to turn
+ * each stat into bytes, written directly into the buffer of the packet being sent.
+ * <p/>
+ * Implementations write a single stat, without any trailing line separator, starting at the current position of the
+ * buffer. If the buffer does not have enough room, implementations should simply let the resulting
+ * {@link java.nio.BufferOverflowException} propagate; the client will retry in a fresh buffer. Implementations must be
+ * thread safe and should not allocate, see {@link StatsdEncoders} for helper methods.
+ *
+ * @see StatsdEncoders
+ */
+public interface StatsdEncoder {
+
+    /**
+     * @param buffer the buffer to write the stat into
+     * @param type the type of stat
+     * @param key the stat key
+     * @param value the stat value
+     * @param sampleRate the rate at which the stat was sampled, 1.0 if not sampled
+     * @param timestamp the time of the stat in milliseconds, as per {@link System#currentTimeMillis()}
+     */
+    void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate, long timestamp);
+}
@@ -0,0 +1,159 @@
+package org.ubercraft.statsd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The built-in {@link StatsdEncoder} implementations, along with allocation free helper methods for writing strings
+ * and numbers into a {@link ByteBuffer}, for use by encoder implementations.
+ * <p/>
+ * Strings are written using the charset configured for {@link StatsdClient}. Pure ASCII strings are written a
+ * character at a time, without allocating; other strings fall back to {@link String#getBytes(Charset)}.
+ */
+public final class StatsdEncoders {
+
+    /**
+     * Plain statsd, e.g. <code>key:1|c|@0.500000</code>
+     */
+    public static final StatsdEncoder STATSD = new StatsdPlainEncoder();
+
+    /**
+     * DogStatsD, without any tags, e.g. <code>key:1|c|@0.500000</code>
+     */
+    public static final StatsdEncoder DOGSTATSD = new StatsdDogEncoder();
+
+    /**
+     * Graphite plaintext, e.g. <code>key 2 1356998400</code>
+     */
+    public static final StatsdEncoder GRAPHITE = new StatsdGraphiteEncoder();
+
+    /**
+     * InfluxDB line protocol, e.g. <code>key,type=c value=1i,sample_rate=0.500000 1356998400000000000</code>
+     */
+    public static final StatsdEncoder INFLUX = new StatsdInfluxEncoder();
+
+    private static final Charset CHARSET = StatsdClient.CHARSET;
+
+    private static final boolean ASCII_COMPATIBLE = Arrays.equals("az09:|".getBytes(CHARSET), new byte[] {
+            'a', 'z', '0', '9', ':', '|'
+    });
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        long power = 1L;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10L;
+        }
+    }
+
+    private StatsdEncoders() {}
+
+    /**
+     * Returns the built-in encoder with the given name (one of <code>statsd</code>, <code>dogstatsd</code>,
+     * <code>graphite</code> or <code>influx</code>, case insensitive), or otherwise tries to instantiate the named
+     * class, which must implement {@link StatsdEncoder} and have a public no-argument constructor.
+     */
+    public static StatsdEncoder forName(String name) {
+        if (name == null || name.equalsIgnoreCase("statsd")) {
+            return STATSD;
+        }
+        if (name.equalsIgnoreCase("dogstatsd")) {
+            return DOGSTATSD;
+        }
+        if (name.equalsIgnoreCase("graphite")) {
+            return GRAPHITE;
+        }
+        if (name.equalsIgnoreCase("influx")) {
+            return INFLUX;
+        }
+        try {
+            return Class.forName(name).asSubclass(StatsdEncoder.class).newInstance();
+        }
+        catch (Exception e) {
+            throw new IllegalArgumentException("unknown statsd encoder: " + name, e);
+        }
+    }
+
+    public static void putString(ByteBuffer buffer, String s) {
+        if (ASCII_COMPATIBLE) {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    buffer.put(s.substring(i).getBytes(CHARSET));
+                    return;
+                }
+                buffer.put((byte)c);
+            }
+        }
+        else {
+            buffer.put(s.getBytes(CHARSET));
+        }
+    }
+
+    public static void putLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte)'-');
+            if (value == Long.MIN_VALUE) {
+                // can't be negated, write the leading digit separately
+                buffer.put((byte)'9');
+                value = -(value + 9 * POWERS_OF_TEN[18]);
+                putDigits(buffer, value, 18);
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        putDigits(buffer, value, digits);
+    }
+
+    /**
+     * Writes the given value with a fixed number of decimal places (at most 18), rounding half up. With 6 decimals
+     * this matches the output of <code>String.format(Locale.US, "%f", value)</code> for sample rates.
+     */
+    public static void putDecimal(ByteBuffer buffer, double value, int decimals) {
+        if (value < 0) {
+            buffer.put((byte)'-');
+            value = -value;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = (long)Math.floor(value * scale + 0.5D);
+        putLong(buffer, scaled / scale);
+        if (decimals > 0) {
+            buffer.put((byte)'.');
+            putDigits(buffer, scaled % scale, decimals);
+        }
+    }
+
+    // writes exactly the given number of digits of the (non-negative) value, zero padded
+    private static void putDigits(ByteBuffer buffer, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer.put((byte)('0' + (value / POWERS_OF_TEN[i]) % 10));
+        }
+    }
+
+    /**
+     * Writes the statsd type symbol for the given type, i.e. one of <code>c</code>, <code>ms</code> or <code>g</code>.
+     */
+    public static void putStatsdType(ByteBuffer buffer, StatsdStatType type) {
+        switch (type) {
+            case COUNTER:
+                buffer.put((byte)'c');
+                break;
+            case TIMER:
+                buffer.put((byte)'m').put((byte)'s');
+                break;
+            case GAUGE:
+                buffer.put((byte)'g');
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
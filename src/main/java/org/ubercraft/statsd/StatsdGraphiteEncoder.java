@@ -0,0 +1,30 @@
+package org.ubercraft.statsd;
+
+import static org.ubercraft.statsd.StatsdEncoders.putLong;
+import static org.ubercraft.statsd.StatsdEncoders.putString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes stats in the Graphite plaintext format, i.e. <code>&lt;key&gt; &lt;value&gt; &lt;timestamp&gt;</code>, where
+ * the timestamp is in seconds.
+ * <p/>
+ * Graphite has no notion of stat types or sampling, so sampled counter values are scaled up by the sample rate (e.g. a
+ * count of 1 sampled at 0.1 is sent as 10). Any spaces in keys are replaced with underscores.
+ *
+ * @see StatsdEncoders#GRAPHITE
+ */
+public class StatsdGraphiteEncoder implements StatsdEncoder {
+
+    @Override
+    public void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        putString(buffer, key.indexOf(' ') < 0 ? key : key.replace(' ', '_'));
+        buffer.put((byte)' ');
+        if (type == StatsdStatType.COUNTER && sampleRate < 1.0D && sampleRate > 0.0D) {
+            value = Math.round(value / sampleRate);
+        }
+        putLong(buffer, value);
+        buffer.put((byte)' ');
+        putLong(buffer, timestamp / 1000L);
+    }
+}
@@ -0,0 +1,45 @@
+package org.ubercraft.statsd;
+
+import static org.ubercraft.statsd.StatsdEncoders.putDecimal;
+import static org.ubercraft.statsd.StatsdEncoders.putLong;
+import static org.ubercraft.statsd.StatsdEncoders.putString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes stats in the InfluxDB line protocol, i.e.
+ * <code>&lt;key&gt;,type=&lt;type&gt; value=&lt;value&gt;i[,sample_rate=&lt;rate&gt;] &lt;timestamp&gt;</code>, where
+ * the type is the statsd type symbol and the timestamp is in nanoseconds. Commas and spaces in keys are escaped.
+ *
+ * @see StatsdEncoders#INFLUX
+ */
+public class StatsdInfluxEncoder implements StatsdEncoder {
+
+    private static final byte[] TYPE_TAG = ",type=".getBytes();
+    private static final byte[] VALUE_FIELD = " value=".getBytes();
+    private static final byte[] SAMPLE_RATE_FIELD = ",sample_rate=".getBytes();
+
+    @Override
+    public void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        putString(buffer, needsEscape(key) ? escape(key) : key);
+        buffer.put(TYPE_TAG);
+        StatsdEncoders.putStatsdType(buffer, type);
+        buffer.put(VALUE_FIELD);
+        putLong(buffer, value);
+        buffer.put((byte)'i');
+        if (sampleRate < 1.0D) {
+            buffer.put(SAMPLE_RATE_FIELD);
+            putDecimal(buffer, sampleRate, 6);
+        }
+        buffer.put((byte)' ');
+        putLong(buffer, timestamp * 1000000L);
+    }
+
+    private static boolean needsEscape(String key) {
+        return key.indexOf(',') >= 0 || key.indexOf(' ') >= 0;
+    }
+
+    private static String escape(String key) {
+        return key.replace(",", "\\,").replace(" ", "\\ ");
+    }
+}
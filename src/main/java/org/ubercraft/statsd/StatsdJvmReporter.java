@@ -0,0 +1,258 @@
+package org.ubercraft.statsd;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Reports JVM runtime metrics, read from the platform MXBeans, to a {@link StatsdClient}. Once started, a background
+ * daemon thread takes a sample every <code>interval</code> milliseconds, and submits it as a single
+ * {@link StatsdBatch}. The following stats are reported, with keys under the configured <code>prefix</code>:
+ * <ul>
+ * <li><code>gc.&lt;collector&gt;.count</code> and <code>gc.&lt;collector&gt;.time</code>: counters, of the collections
+ * and the collection time in milliseconds since the previous sample, per garbage collector</li>
+ * <li><code>memory.heap.used</code>, <code>memory.heap.committed</code> and <code>memory.heap.max</code>: gauges, in
+ * bytes</li>
+ * <li><code>memory.nonheap.used</code> and <code>memory.nonheap.committed</code>: gauges, in bytes</li>
+ * <li><code>threads.count</code>, <code>threads.daemon</code> and <code>threads.peak</code>: gauges</li>
+ * <li><code>classes.loaded</code>: a gauge, and <code>classes.unloaded</code>: a counter since the previous sample</li>
+ * </ul>
+ * All keys are built once, and the batch is reused, so taking a sample does not allocate, apart from the
+ * <code>MemoryUsage</code> object the JDK returns for the non-heap memory usage. Heap usage is read from
+ * {@link Runtime}, which does not allocate. If the previous sample has not yet been sent when the next is due (i.e. the
+ * client queue is backed up), or if a sample could not be submitted, the counters cover both intervals in the following
+ * sample. If the client sends synchronously, in the calling thread, each counter is sent on its own rather than in the
+ * batch, so that a counter that was sent is not counted again because another stat failed.
+ * <p/>
+ * The reporter can also be enabled from logback configuration, via the <code>jvmMetrics</code> properties of
+ * {@link StatsdLogbackAppender}.
+ */
+public class StatsdJvmReporter {
+
+    public static final String DEFAULT_PREFIX = "jvm";
+
+    public static final long DEFAULT_INTERVAL = 10000;
+
+    private final StatsdClient client;
+    private final long interval;
+
+    private final StatsdBatch batch = new StatsdBatch(32);
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final ClassLoadingMXBean classLoadingBean = ManagementFactory.getClassLoadingMXBean();
+    private final GarbageCollectorMXBean[] gcBeans;
+
+    private final String[] gcCountKeys;
+    private final String[] gcTimeKeys;
+    private final String heapUsedKey;
+    private final String heapCommittedKey;
+    private final String heapMaxKey;
+    private final String nonHeapUsedKey;
+    private final String nonHeapCommittedKey;
+    private final String threadsKey;
+    private final String daemonThreadsKey;
+    private final String peakThreadsKey;
+    private final String loadedClassesKey;
+    private final String unloadedClassesKey;
+
+    // the values of the monotonic counters at the previous sample submitted
+    private final long[] gcCounts;
+    private final long[] gcTimes;
+    private long unloadedClasses;
+
+    // the values of the monotonic counters in the current sample, until it has been submitted
+    private final long[] nextGcCounts;
+    private final long[] nextGcTimes;
+
+    // false if a counter sent on its own in the current sample failed
+    private boolean countersSent;
+
+    private volatile ReportThread thread;
+
+    public StatsdJvmReporter(StatsdClient client) {
+        this(client, DEFAULT_PREFIX, DEFAULT_INTERVAL);
+    }
+
+    public StatsdJvmReporter(StatsdClient client, String prefix, long interval) {
+        this(client, prefix, interval, ManagementFactory.getGarbageCollectorMXBeans());
+    }
+
+    // for tests, with the given garbage collectors
+    StatsdJvmReporter(StatsdClient client, String prefix, long interval, List<GarbageCollectorMXBean> gcBeanList) {
+        if (client == null) {
+            throw new IllegalArgumentException("null client");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.client = client;
+        this.interval = interval;
+
+        prefix = prefix == null || prefix.length() == 0 ? "" : prefix + ".";
+
+        gcBeans = gcBeanList.toArray(new GarbageCollectorMXBean[gcBeanList.size()]);
+        gcCountKeys = new String[gcBeans.length];
+        gcTimeKeys = new String[gcBeans.length];
+        gcCounts = new long[gcBeans.length];
+        gcTimes = new long[gcBeans.length];
+        nextGcCounts = new long[gcBeans.length];
+        nextGcTimes = new long[gcBeans.length];
+        for (int i = 0; i < gcBeans.length; i++) {
+            String name = sanitize(gcBeans[i].getName());
+            gcCountKeys[i] = prefix + "gc." + name + ".count";
+            gcTimeKeys[i] = prefix + "gc." + name + ".time";
+            gcCounts[i] = gcBeans[i].getCollectionCount();
+            gcTimes[i] = gcBeans[i].getCollectionTime();
+        }
+
+        heapUsedKey = prefix + "memory.heap.used";
+        heapCommittedKey = prefix + "memory.heap.committed";
+        heapMaxKey = prefix + "memory.heap.max";
+        nonHeapUsedKey = prefix + "memory.nonheap.used";
+        nonHeapCommittedKey = prefix + "memory.nonheap.committed";
+        threadsKey = prefix + "threads.count";
+        daemonThreadsKey = prefix + "threads.daemon";
+        peakThreadsKey = prefix + "threads.peak";
+        loadedClassesKey = prefix + "classes.loaded";
+        unloadedClassesKey = prefix + "classes.unloaded";
+
+        unloadedClasses = classLoadingBean.getUnloadedClassCount();
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Starts the background thread that reports a sample every interval.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new ReportThread();
+            thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Takes a sample and submits it to the client. Called periodically by the background thread once started.
+     *
+     * @return false if the sample was skipped because the previous one has not been sent yet, or if it could not be
+     * submitted
+     */
+    public synchronized boolean report() {
+        if (batch.isPending()) {
+            return false;
+        }
+        batch.reset();
+        boolean sync = !client.isQueued();
+        countersSent = true;
+
+        for (int i = 0; i < gcBeans.length; i++) {
+            nextGcCounts[i] = counter(gcCountKeys[i], gcCounts[i], gcBeans[i].getCollectionCount(), sync);
+            nextGcTimes[i] = counter(gcTimeKeys[i], gcTimes[i], gcBeans[i].getCollectionTime(), sync);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long total = runtime.totalMemory();
+        gauge(heapUsedKey, total - runtime.freeMemory());
+        gauge(heapCommittedKey, total);
+        long max = runtime.maxMemory();
+        if (max != Long.MAX_VALUE) {
+            gauge(heapMaxKey, max);
+        }
+
+        MemoryUsage nonHeap = memoryBean.getNonHeapMemoryUsage();
+        gauge(nonHeapUsedKey, nonHeap.getUsed());
+        gauge(nonHeapCommittedKey, nonHeap.getCommitted());
+
+        gauge(threadsKey, threadBean.getThreadCount());
+        gauge(daemonThreadsKey, threadBean.getDaemonThreadCount());
+        gauge(peakThreadsKey, threadBean.getPeakThreadCount());
+
+        gauge(loadedClassesKey, classLoadingBean.getLoadedClassCount());
+        long unloaded = counter(unloadedClassesKey, unloadedClasses, classLoadingBean.getUnloadedClassCount(), sync);
+
+        boolean submitted = client.submit(batch);
+        if (submitted || sync) {
+            // otherwise counted again in the next sample
+            System.arraycopy(nextGcCounts, 0, gcCounts, 0, gcCounts.length);
+            System.arraycopy(nextGcTimes, 0, gcTimes, 0, gcTimes.length);
+            unloadedClasses = unloaded;
+        }
+        return submitted && countersSent;
+    }
+
+    // counts the increase of a monotonic value (if available) since the previous sample, returning the value to count
+    // from in the next sample, once this one has been submitted. If sync, the counter is sent straight away, and if
+    // that fails the previous value is returned, so it is counted again.
+    private long counter(String key, long previous, long value, boolean sync) {
+        if (value < 0) {
+            return previous;
+        }
+        long delta = value - previous;
+        if (delta <= 0) {
+            return value;
+        }
+        int count = (int)Math.min(delta, Integer.MAX_VALUE);
+        if (!sync) {
+            batch.count(key, count);
+        }
+        else if (!client.count(key, count)) {
+            countersSent = false;
+            return previous;
+        }
+        return previous + count;
+    }
+
+    private void gauge(String key, long value) {
+        batch.stat(StatsdStatType.GAUGE, key, value, 1.0D);
+    }
+
+    // makes a collector name usable as a key segment
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private class ReportThread extends Thread {
+
+        ReportThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (thread == this) {
+                    Thread.sleep(interval);
+                    try {
+                        report();
+                    }
+                    catch (RuntimeException e) {
+                        // e.g. from an MXBean, which must not stop the reports that follow
+                        client.handleError("Report failed", "jvm metrics", e);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                // done;
+            }
+        }
+    }
+}
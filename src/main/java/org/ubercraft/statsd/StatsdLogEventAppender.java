@@ -0,0 +1,395 @@
+package org.ubercraft.statsd;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * A logback appender that turns ordinary log traffic into statsd counters. Attach it to any logger to get per-level
+ * event rates (e.g. errors and warnings per logger) without adding explicit stat calls to the code doing the logging.
+ * <p/>
+ * Each event is counted against a key made up of the configured <code>prefix</code>, the first <code>depth</code>
+ * segments of the logger name (or the whole name if <code>depth</code> is 0 or less) and the lower case level name,
+ * e.g. <code>log.com.example.error</code>. Counting an event is just an increment of a {@link StatsdStripedCounter}, so
+ * busy loggers do not contend with each other. The aggregated counts are sent to the statsd server by a background
+ * daemon thread every <code>flushInterval</code> milliseconds, so a storm of log events costs a handful of packets per
+ * interval rather than one packet per event.
+ * <p/>
+ * The number of keys counted is limited by the <code>maxKeys</code> property (default 1000), since each key holds
+ * counters for the life of the appender. Once the limit is reached, events that would need a new key are counted
+ * against the <code>other</code> key instead (e.g. <code>log.other.error</code>), and the number of such overflows is
+ * counted (see {@link #getKeyOverflowCount()}). Setting <code>depth</code> keeps the number of keys down in the first
+ * place.
+ * <p/>
+ * Events logged by {@link StatsdLoggerImpl} (i.e. stats themselves) are ignored by this appender.
+ * <p/>
+ * The <code>format</code>, <code>tags</code>, <code>maxPacketSize</code> and <code>packing</code> properties are as per
+ * {@link StatsdLogbackAppender}, and likewise the client is shared with other appenders with the same settings.
+ *
+ * @see StatsdLogbackAppender
+ * @see StatsdClient
+ */
+public class StatsdLogEventAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    private static final int DEFAULT_QUEUE_SIZE = 500;
+    private static final int DEFAULT_QUEUE_OFFER_TIMEOUT = 0;
+    private static final String DEFAULT_PREFIX = "log";
+    private static final int DEFAULT_DEPTH = 0;
+    private static final long DEFAULT_FLUSH_INTERVAL = 10000;
+    private static final int DEFAULT_MAX_KEYS = 1000;
+
+    private static final String OTHER_KEY = "other";
+
+    // logger names cached beyond this are looked up by key every time, so the cache stays bounded too
+    private static final int MAX_CACHED_LOGGERS = 10000;
+
+    private static final int ERROR = 0;
+    private static final int WARN = 1;
+    private static final int INFO = 2;
+    private static final int DEBUG = 3;
+    private static final int TRACE = 4;
+
+    private static final Level[] LEVELS = {
+            Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE
+    };
+
+    private String host;
+    private int port = StatsdClient.DEFAULT_PORT;
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long queueOfferTimeout = DEFAULT_QUEUE_OFFER_TIMEOUT;
+
+    private String format;
+    private String tags;
+    private int maxPacketSize = StatsdClient.DEFAULT_MAX_PACKET_SIZE;
+    private boolean packing;
+
+    private String prefix = DEFAULT_PREFIX;
+    private int depth = DEFAULT_DEPTH;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private int maxKeys = DEFAULT_MAX_KEYS;
+
+    private volatile StatsdAppenderClient client;
+    private volatile FlushThread thread;
+
+    // logger name -> counters, and truncated key -> counters (several logger names may share the same counters)
+    private final ConcurrentMap<String, LevelCounters> loggerCounters = new ConcurrentHashMap<String, LevelCounters>();
+    private final ConcurrentMap<String, LevelCounters> keyCounters = new ConcurrentHashMap<String, LevelCounters>();
+
+    private final AtomicLong keyOverflows = new AtomicLong();
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public boolean isPacking() {
+        return packing;
+    }
+
+    public void setPacking(boolean packing) {
+        this.packing = packing;
+    }
+
+    public long getQueueOfferTimeout() {
+        return queueOfferTimeout;
+    }
+
+    public void setQueueOfferTimeout(long queueOfferTimeout) {
+        this.queueOfferTimeout = queueOfferTimeout;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Returns the number of times a new key was refused because the key limit had been reached, and the other key
+     * counted instead.
+     */
+    public long getKeyOverflowCount() {
+        return keyOverflows.get();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (isStarted()) {
+            return;
+        }
+
+        if (host == null) {
+            throw new IllegalStateException("host property is required for appender: " + name);
+        }
+
+        if (flushInterval <= 0) {
+            throw new IllegalStateException("flushInterval property must be positive for appender: " + name);
+        }
+
+        if (maxKeys <= 0) {
+            throw new IllegalStateException("maxKeys property must be positive for appender: " + name);
+        }
+
+        try {
+            client = StatsdAppenderClient.acquire(this, host, port, queueSize, queueSize, queueSize, //
+                    queueOfferTimeout, format, tags, maxPacketSize, packing, null, 0, 0, //
+                    StatsdClient.DEFAULT_SPILL_REPLAY_RATE, 0, 0, false, null, 0);
+
+            thread = new FlushThread();
+            thread.start();
+
+            super.start();
+        }
+        catch (Exception e) {
+            addError("could not create statsd client", e);
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+            if (client != null) {
+                client.release(this);
+                client = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!isStarted()) {
+            return;
+        }
+
+        super.stop();
+
+        thread.interrupt();
+        thread = null;
+
+        flush();
+
+        client.release(this);
+        client = null;
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (isStatEvent(event)) {
+            return;
+        }
+
+        int level = levelIndex(event.getLevel());
+        if (level < 0) {
+            return;
+        }
+
+        String loggerName = event.getLoggerName();
+        LevelCounters counters = loggerCounters.get(loggerName);
+        if (counters == null) {
+            counters = createCounters(loggerName);
+        }
+        counters.counters[level].increment();
+    }
+
+    /**
+     * Sends the counts accumulated since the last flush. Called periodically by the background flush thread.
+     */
+    public void flush() {
+        StatsdClient client = this.client;
+        if (client == null) {
+            return;
+        }
+        for (LevelCounters counters : keyCounters.values()) {
+            for (int i = 0; i < LEVELS.length; i++) {
+                long count = counters.counters[i].sumThenReset();
+                if (count > 0) {
+                    client.count(counters.keys[i], (int)Math.min(count, Integer.MAX_VALUE));
+                }
+            }
+        }
+    }
+
+    private LevelCounters createCounters(String loggerName) {
+        String key = statKey(loggerName);
+        LevelCounters counters = keyCounters.get(key);
+        if (counters == null) {
+            counters = admit(key);
+        }
+        if (loggerCounters.size() < MAX_CACHED_LOGGERS) {
+            loggerCounters.putIfAbsent(loggerName, counters);
+        }
+        return counters;
+    }
+
+    // adds counters for a new key, or returns the other counters if the key limit has been reached
+    private LevelCounters admit(String key) {
+        synchronized (keyCounters) {
+            LevelCounters counters = keyCounters.get(key);
+            if (counters == null) {
+                if (keyCounters.size() >= maxKeys) {
+                    keyOverflows.incrementAndGet();
+                    key = prefixed(OTHER_KEY);
+                    counters = keyCounters.get(key);
+                }
+                if (counters == null) {
+                    counters = new LevelCounters(key);
+                    keyCounters.put(key, counters);
+                }
+            }
+            return counters;
+        }
+    }
+
+    private String statKey(String loggerName) {
+        String name = loggerName;
+        if (depth > 0) {
+            int end = -1;
+            for (int i = 0; i < depth; i++) {
+                end = loggerName.indexOf('.', end + 1);
+                if (end < 0) {
+                    break;
+                }
+            }
+            if (end >= 0) {
+                name = loggerName.substring(0, end);
+            }
+        }
+        return prefixed(name);
+    }
+
+    private String prefixed(String name) {
+        if (prefix == null || prefix.length() == 0) {
+            return name;
+        }
+        return prefix + "." + name;
+    }
+
+    private static boolean isStatEvent(ILoggingEvent event) {
+        Object[] args = event.getArgumentArray();
+        return args != null && args.length > 0 && //
+                (args[0] instanceof StatsdStatType || args[0] instanceof StatsdBatch);
+    }
+
+    private static int levelIndex(Level level) {
+        switch (level.toInt()) {
+            case Level.ERROR_INT:
+                return ERROR;
+            case Level.WARN_INT:
+                return WARN;
+            case Level.INFO_INT:
+                return INFO;
+            case Level.DEBUG_INT:
+                return DEBUG;
+            case Level.TRACE_INT:
+                return TRACE;
+            default:
+                return -1;
+        }
+    }
+
+    private static class LevelCounters {
+
+        final String[] keys = new String[LEVELS.length];
+        final StatsdStripedCounter[] counters = new StatsdStripedCounter[LEVELS.length];
+
+        LevelCounters(String key) {
+            for (int i = 0; i < LEVELS.length; i++) {
+                keys[i] = key + "." + LEVELS[i].toString().toLowerCase(Locale.US);
+                counters[i] = new StatsdStripedCounter();
+            }
+        }
+    }
+
+    private class FlushThread extends Thread {
+
+        FlushThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (thread == this) {
+                    Thread.sleep(flushInterval);
+                    flush();
+                }
+            }
+            catch (InterruptedException e) {
+                // done;
+            }
+        }
+    }
+}
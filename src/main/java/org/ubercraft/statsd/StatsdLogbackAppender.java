@@ -1,28 +1,95 @@
 package org.ubercraft.statsd;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
 /**
  * A logback appender implementation intended for use in conjunction with {@link StatsdLoggerImpl}.
+ * <p/>
+ * Stats are expected to have been sampled already, before being logged (as {@link StatsdLoggerImpl} does), so no
+ * further sampling is done by this appender.
+ * <p/>
+ * Setting the <code>spillFile</code> property enables a {@link StatsdSpillBuffer} of <code>spillSize</code> bytes
+ * behind the client queue, so that stats overflowing the queue are held (for up to <code>spillMaxAge</code>
+ * milliseconds) and replayed at <code>spillReplayRate</code> stats per second, rather than dropped. The spill buffer's
+ * counts of bytes spilled, replayed, expired and dropped are available from {@link #getSpillBuffer()}, and via JMX
+ * under the name of the spill file. Clients configured with the same spill file share its buffer.
+ * <p/>
+ * The wire format is chosen with the <code>format</code> property, one of <code>statsd</code> (the default),
+ * <code>dogstatsd</code>, <code>graphite</code>, <code>influx</code> or the class name of a {@link StatsdEncoder}.
+ * Setting the <code>tags</code> property (a comma separated list) implies the <code>dogstatsd</code> format, with those
+ * tags added to every stat.
+ * <p/>
+ * Each stat is sent in a packet of its own, unless the <code>packing</code> property is set to true, in which case
+ * stats sent together are packed into packets of up to <code>maxPacketSize</code> bytes, separated by newlines, see
+ * {@link StatsdClient#setPacking(boolean)}.
+ * <p/>
+ * Appenders with the same client settings share a single client (and so socket, queue and send thread), and on
+ * reconfiguration the client is handed over to the new appenders rather than recreated, see
+ * {@link StatsdClientRegistry}.
+ * <p/>
+ * Setting the <code>jvmMetrics</code> property to true also reports JVM runtime metrics through the client, every
+ * <code>jvmMetricsInterval</code> milliseconds under the <code>jvmMetricsPrefix</code> key prefix, see
+ * {@link StatsdJvmReporter}. The metrics are reported once per shared client, however many appenders share it.
+ * <p/>
+ * Setting the <code>snapshotKeys</code> property to a positive number keeps a {@link StatsdSnapshot} of the stats
+ * sent, for up to that many keys over a sliding window of <code>snapshotWindow</code> milliseconds. The snapshot is
+ * available from {@link #getSnapshot()}, and via JMX under the name of the client endpoint, followed by a number
+ * that tells apart clients with different settings.
+ * <p/>
+ * Stats are enqueued in the client's {@link StatsdPriority} lanes according to the level they were logged at: INFO
+ * and above in the HIGH lane, DEBUG in the NORMAL lane and TRACE in the LOW lane. So turning on TRACE level stats
+ * cannot crowd INFO level stats out of the queue. The <code>queueSize</code> property sets the size of the NORMAL lane,
+ * and <code>highQueueSize</code> and <code>lowQueueSize</code> the sizes of the other lanes (by default the same as
+ * <code>queueSize</code>).
+ * <p/>
+ * This appender is not synchronized: logging threads call through to the client concurrently, without contending on
+ * an appender lock. Only starting and stopping are synchronized. It must be called in the logging thread for batches
+ * logged via {@link StatsdLoggerImpl}, which may be reused once the logging call returns, so batches from events
+ * deferred to another thread (e.g. by an <code>AsyncAppender</code>) are dropped, with a warning.
  * 
  * @see StatsdLoggerImpl
  * @see StatsdClient
  */
-public class StatsdLogbackAppender extends AppenderBase<ILoggingEvent> {
+public class StatsdLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
     private static final int DEFAULT_QUEUE_SIZE = 500;
     private static final int DEFAULT_QUEUE_OFFER_TIMEOUT = 0;
+    private static final int DEFAULT_SPILL_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_SPILL_MAX_AGE = 5 * 60 * 1000;
 
     private String host;
     private int port = StatsdClient.DEFAULT_PORT;
 
     private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int highQueueSize;
+    private int lowQueueSize;
     private long queueOfferTimeout = DEFAULT_QUEUE_OFFER_TIMEOUT;
 
-    private StatsdClient client;
+    private String format;
+    private String tags;
+    private int maxPacketSize = StatsdClient.DEFAULT_MAX_PACKET_SIZE;
+    private boolean packing;
+
+    private String spillFile;
+    private int spillSize = DEFAULT_SPILL_SIZE;
+    private long spillMaxAge = DEFAULT_SPILL_MAX_AGE;
+    private int spillReplayRate = StatsdClient.DEFAULT_SPILL_REPLAY_RATE;
+
+    private boolean jvmMetrics;
+    private String jvmMetricsPrefix = StatsdJvmReporter.DEFAULT_PREFIX;
+    private long jvmMetricsInterval = StatsdJvmReporter.DEFAULT_INTERVAL;
 
-    private boolean warnQueueFull = true;
+    private int snapshotKeys;
+    private long snapshotWindow = StatsdSnapshot.DEFAULT_WINDOW;
+
+    private volatile StatsdAppenderClient client;
+
+    // only the first batch dropped is reported
+    private final AtomicBoolean warnDeferredBatch = new AtomicBoolean(true);
 
     public String getHost() {
         return host;
@@ -48,6 +115,54 @@ public class StatsdLogbackAppender extends AppenderBase<ILoggingEvent> {
         this.queueSize = queueSize;
     }
 
+    public int getHighQueueSize() {
+        return highQueueSize;
+    }
+
+    public void setHighQueueSize(int highQueueSize) {
+        this.highQueueSize = highQueueSize;
+    }
+
+    public int getLowQueueSize() {
+        return lowQueueSize;
+    }
+
+    public void setLowQueueSize(int lowQueueSize) {
+        this.lowQueueSize = lowQueueSize;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public boolean isPacking() {
+        return packing;
+    }
+
+    public void setPacking(boolean packing) {
+        this.packing = packing;
+    }
+
     public long getQueueOfferTimeout() {
         return queueOfferTimeout;
     }
@@ -56,8 +171,101 @@ public class StatsdLogbackAppender extends AppenderBase<ILoggingEvent> {
         this.queueOfferTimeout = queueOfferTimeout;
     }
 
+    public String getSpillFile() {
+        return spillFile;
+    }
+
+    public void setSpillFile(String spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    public int getSpillSize() {
+        return spillSize;
+    }
+
+    public void setSpillSize(int spillSize) {
+        this.spillSize = spillSize;
+    }
+
+    public long getSpillMaxAge() {
+        return spillMaxAge;
+    }
+
+    public void setSpillMaxAge(long spillMaxAge) {
+        this.spillMaxAge = spillMaxAge;
+    }
+
+    public int getSpillReplayRate() {
+        return spillReplayRate;
+    }
+
+    public void setSpillReplayRate(int spillReplayRate) {
+        this.spillReplayRate = spillReplayRate;
+    }
+
+    public boolean isJvmMetrics() {
+        return jvmMetrics;
+    }
+
+    public void setJvmMetrics(boolean jvmMetrics) {
+        this.jvmMetrics = jvmMetrics;
+    }
+
+    public String getJvmMetricsPrefix() {
+        return jvmMetricsPrefix;
+    }
+
+    public void setJvmMetricsPrefix(String jvmMetricsPrefix) {
+        this.jvmMetricsPrefix = jvmMetricsPrefix;
+    }
+
+    public long getJvmMetricsInterval() {
+        return jvmMetricsInterval;
+    }
+
+    public void setJvmMetricsInterval(long jvmMetricsInterval) {
+        this.jvmMetricsInterval = jvmMetricsInterval;
+    }
+
+    public int getSnapshotKeys() {
+        return snapshotKeys;
+    }
+
+    public void setSnapshotKeys(int snapshotKeys) {
+        this.snapshotKeys = snapshotKeys;
+    }
+
+    public long getSnapshotWindow() {
+        return snapshotWindow;
+    }
+
+    public void setSnapshotWindow(long snapshotWindow) {
+        this.snapshotWindow = snapshotWindow;
+    }
+
+    // the shared client, or null if not started
+    StatsdAppenderClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the spill buffer of this appender's client, or null if not started or not enabled.
+     */
+    public StatsdSpillBuffer getSpillBuffer() {
+        StatsdClient client = this.client;
+        return client != null ? client.getSpillBuffer() : null;
+    }
+
+    /**
+     * Returns the snapshot of the stats sent by this appender's client, or null if not started or not enabled.
+     */
+    public StatsdSnapshot getSnapshot() {
+        StatsdClient client = this.client;
+        return client != null ? client.getSnapshot() : null;
+    }
+
     @Override
-    public void start() {
+    public synchronized void start() {
         if (isStarted()) {
             return;
         }
@@ -66,47 +274,68 @@ public class StatsdLogbackAppender extends AppenderBase<ILoggingEvent> {
             throw new IllegalStateException("host property is required for appender: " + name);
         }
 
+        if (jvmMetrics && jvmMetricsInterval <= 0) {
+            throw new IllegalStateException("jvmMetricsInterval property must be positive for appender: " + name);
+        }
+
         try {
-            client = new StatsdClient(host, port, null, queueSize) {
-                @Override
-                protected void errorQueueFull(String stat) {
-                    if (warnQueueFull) {
-                        warnQueueFull = false;
-                        addWarn("statsd appender queue is full, if you see this message " + //
-                                "it means the queue size needs to be increased, " + //
-                                "or the number of stats logged decreased: " + stat);
-                    }
-                }
+            client = StatsdAppenderClient.acquire(this, host, port, //
+                    highQueueSize > 0 ? highQueueSize : queueSize, queueSize, //
+                    lowQueueSize > 0 ? lowQueueSize : queueSize, queueOfferTimeout, format, tags, maxPacketSize, //
+                    packing, spillFile, spillSize, spillMaxAge, spillReplayRate, snapshotKeys, snapshotWindow, //
+                    jvmMetrics, jvmMetricsPrefix, jvmMetricsInterval);
 
-                @Override
-                protected void handleError(String message, String stat, Exception e) {
-                    addError(message + ": sending " + stat + " to " + toString(), e);
+            StatsdSpillBuffer spillBuffer = client.getSpillBuffer();
+            if (spillBuffer != null) {
+                try {
+                    spillBuffer.register(spillBuffer.getFile().getPath());
                 }
-            };
+                catch (Exception e) {
+                    addWarn("could not register statsd spill buffer with JMX", e);
+                }
+            }
 
-            client.setQueueOfferTimeout(queueOfferTimeout);
+            StatsdSnapshot snapshot = client.getSnapshot();
+            if (snapshot != null) {
+                try {
+                    snapshot.register(client.getName());
+                }
+                catch (Exception e) {
+                    addWarn("could not register statsd snapshot with JMX", e);
+                }
+            }
 
-            started = true;
+            super.start();
         }
         catch (Exception e) {
             addError("could not create statsd client", e);
+            if (client != null) {
+                client.release(this);
+                client = null;
+            }
         }
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
         if (!isStarted()) {
             return;
         }
 
-        client.shutdown();
-        client = null;
+        super.stop();
 
-        started = false;
+        client.release(this);
+        client = null;
     }
 
     @Override
     protected void append(ILoggingEvent event) {
+        // may be stopped concurrently
+        StatsdAppenderClient client = this.client;
+        if (client == null) {
+            return;
+        }
+
         boolean sent = false;
 
         Object[] args = event.getArgumentArray();
@@ -121,12 +350,38 @@ public class StatsdLogbackAppender extends AppenderBase<ILoggingEvent> {
                 long value = (Long)args[1];
                 double sampleRate = (Double)args[2];
 
-                sent = client.stat(type, key, value, sampleRate);
+                sent = client.send(priority(event.getLevel()), type, key, value, sampleRate);
+            }
+        }
+        else if (args != null && args.length == 1 && args[0] instanceof StatsdBatch) {
+            StatsdBatch batch = (StatsdBatch)args[0];
+            // the logging thread holds the batch only until its logging call returns, and may then reuse it
+            if (batch.holdIfPending()) {
+                try {
+                    sent = client.submit(priority(event.getLevel()), batch);
+                }
+                finally {
+                    batch.release();
+                }
+            }
+            else if (warnDeferredBatch.compareAndSet(true, false)) {
+                addWarn("statsd appender dropped a batch that was no longer held by the thread that logged it, " + //
+                        "batches must be appended synchronously, not via an AsyncAppender: " + event);
             }
         }
 
         if (sent) {
-            warnQueueFull = true;
+            client.sent();
+        }
+    }
+
+    private static StatsdPriority priority(Level level) {
+        if (level.isGreaterOrEqual(Level.INFO)) {
+            return StatsdPriority.HIGH;
+        }
+        if (level.isGreaterOrEqual(Level.DEBUG)) {
+            return StatsdPriority.NORMAL;
         }
+        return StatsdPriority.LOW;
     }
 }
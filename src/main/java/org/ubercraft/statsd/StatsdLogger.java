@@ -2,15 +2,32 @@ package org.ubercraft.statsd;
 
 public interface StatsdLogger extends StatsdCounter, StatsdTimer, StatsdGauge {
 
+    /**
+     * Returns a logger for the key formed by appending the given suffix (after a dot) to this logger's name.
+     */
+    StatsdLogger child(String suffix);
+
     // Info level
 
     void infoStat(StatsdStatType type, long value, double sampleRate);
 
+    void infoStat(StatsdStatType type, long value, double sampleRate, long sampleId);
+
+    void infoBatch(StatsdBatch batch);
+
     // Debug level
 
     void debugStat(StatsdStatType type, long value, double sampleRate);
 
+    void debugStat(StatsdStatType type, long value, double sampleRate, long sampleId);
+
+    void debugBatch(StatsdBatch batch);
+
     // Trace level
 
     void traceStat(StatsdStatType type, long value, double sampleRate);
+
+    void traceStat(StatsdStatType type, long value, double sampleRate, long sampleId);
+
+    void traceBatch(StatsdBatch batch);
 }
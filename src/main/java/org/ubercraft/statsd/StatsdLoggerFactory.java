@@ -18,6 +18,8 @@ import org.slf4j.LoggerFactory;
  * constructor that takes a single argument of type {@link Logger}.
  * <p/>
  * Repeat calls to this factory for the same logger (i.e. by the same name) will return the same logger instance.
+ * Loggers for dynamic keys should be obtained with {@link StatsdLogger#child(String)} instead, which bounds the
+ * number of loggers created.
  */
 public class StatsdLoggerFactory {
 
@@ -51,12 +53,7 @@ public class StatsdLoggerFactory {
     public static StatsdLogger getLogger(Logger logger) {
         StatsdLogger clientLogger = CACHE.get(logger.getName());
         if (clientLogger == null) {
-            try {
-                clientLogger = LOGGER_CONSTRUCTOR.newInstance(logger);
-            }
-            catch (Exception e) {
-                throw new RuntimeException("failed constructing statsd logger", e);
-            }
+            clientLogger = newLogger(logger);
             StatsdLogger cachedClientLogger = CACHE.putIfAbsent(logger.getName(), clientLogger);
             if (cachedClientLogger != null) {
                 clientLogger = cachedClientLogger;
@@ -64,4 +61,14 @@ public class StatsdLoggerFactory {
         }
         return clientLogger;
     }
+
+    // creates a new logger, bypassing the cache
+    static StatsdLogger newLogger(Logger logger) {
+        try {
+            return LOGGER_CONSTRUCTOR.newInstance(logger);
+        }
+        catch (Exception e) {
+            throw new RuntimeException("failed constructing statsd logger", e);
+        }
+    }
 }
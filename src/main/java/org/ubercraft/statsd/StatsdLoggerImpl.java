@@ -6,8 +6,13 @@ import static org.ubercraft.statsd.StatsdStatType.TIMER;
 
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 
 /**
@@ -18,9 +23,29 @@ import org.slf4j.Marker;
  * the <code>xxxCount(...)</code>, <code>xxxTime(...)</code> and <code>xxxStat(...)</code> methods to log stats as
  * desired.
  * <p/>
+ * Sampled stats (those with a sample rate less than 1.0) are sampled up front, as soon as the level is found to be
+ * enabled, so stats that are not kept cost no more than a disabled level would. The <code>sampleId</code> variants of
+ * the methods sample deterministically on the given id instead, see {@link StatsdSampler}.
+ * <p/>
+ * Several stats can be logged together, as a single log event, by adding them to a {@link StatsdBatch} and passing it
+ * to one of the <code>xxxBatch(...)</code> methods. The keys of the stats in the batch are used as given; the name of
+ * the logger only determines whether the batch is logged, and where to. The batch is held, so that it cannot be
+ * modified, only until the logging call returns; it is then free to be reset and reused. So batches must be appended
+ * synchronously: {@link StatsdLogbackAppender} drops batches from events deferred to another thread, e.g. by an
+ * <code>AsyncAppender</code>.
+ * <p/>
+ * Use {@link #child(String)} to obtain loggers for dynamic sub-keys (e.g. per endpoint or per tenant). Children are
+ * cached per parent, and looking up a cached child does not lock. To guard against unbounded key cardinality, each
+ * parent admits only a limited number of distinct child suffixes, all of which stay cached; once that limit is
+ * reached, children for any new suffixes are replaced by a single shared "other" child, and the number of such
+ * overflows is counted (see {@link #getChildOverflowCount()}). The key limit and other suffix can be configured with
+ * the system properties <code>org.ubercraft.statsd.StatsdLoggerImpl.CHILD_KEY_LIMIT</code> (default 1000) and
+ * <code>org.ubercraft.statsd.StatsdLoggerImpl.CHILD_OTHER_SUFFIX</code> (default "other").
+ * <p/>
  * This class has three <code>statXxx(...)</code> methods, which can be overridden in order to customise exactly how the
- * log message is constructed prior to being logged. The expectation is that the message logged will be understandable
- * by whatever appender has been attached to this logger.
+ * log message is constructed prior to being logged (and likewise three <code>batchXxx(...)</code> methods for
+ * batches). The expectation is that the message logged will be understandable by whatever appender has been attached
+ * to this logger.
  * 
  * @see StatsdLoggerFactory
  */
@@ -28,8 +53,20 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
 
     private static final long serialVersionUID = 6548797032077199054L;
 
+    private static final int CHILD_KEY_LIMIT = Integer.getInteger( //
+            "org.ubercraft.statsd.StatsdLoggerImpl.CHILD_KEY_LIMIT", 1000);
+
+    private static final String CHILD_OTHER_SUFFIX = System.getProperty( //
+            "org.ubercraft.statsd.StatsdLoggerImpl.CHILD_OTHER_SUFFIX", "other");
+
     protected final Logger logger;
 
+    private static final AtomicReferenceFieldUpdater<StatsdLoggerImpl, Children> CHILDREN = //
+            AtomicReferenceFieldUpdater.newUpdater(StatsdLoggerImpl.class, Children.class, "children");
+
+    // created when first needed
+    private transient volatile Children children;
+
     public StatsdLoggerImpl(Logger logger) {
         this.logger = logger;
     }
@@ -48,6 +85,79 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         return StatsdLoggerFactory.getLogger(getName());
     }
 
+    //
+    // Children
+    //
+
+    @Override
+    public StatsdLogger child(String suffix) {
+        if (suffix == null || suffix.length() == 0) {
+            return this;
+        }
+        return children().get(suffix);
+    }
+
+    /**
+     * @return the number of times a child was requested for a new suffix, after the key limit was reached
+     */
+    public long getChildOverflowCount() {
+        Children children = this.children;
+        return children != null ? children.overflows.get() : 0;
+    }
+
+    private Children children() {
+        Children children = this.children;
+        if (children == null) {
+            CHILDREN.compareAndSet(this, null, new Children());
+            children = this.children;
+        }
+        return children;
+    }
+
+    private class Children {
+
+        // every admitted child, so the cache is bounded by the key limit (plus the other child)
+        private final ConcurrentMap<String, StatsdLogger> cache = new ConcurrentHashMap<String, StatsdLogger>();
+
+        // the number of suffixes admitted, only changed while locked
+        private volatile int admitted;
+
+        private final AtomicLong overflows = new AtomicLong();
+
+        StatsdLogger get(String suffix) {
+            StatsdLogger child = cache.get(suffix);
+            if (child != null) {
+                return child;
+            }
+            if (isFull(suffix)) {
+                overflows.incrementAndGet();
+                return get(CHILD_OTHER_SUFFIX);
+            }
+            return admit(suffix);
+        }
+
+        private boolean isFull(String suffix) {
+            return admitted >= CHILD_KEY_LIMIT && !suffix.equals(CHILD_OTHER_SUFFIX);
+        }
+
+        // only called on a cache miss, to create the child
+        private synchronized StatsdLogger admit(String suffix) {
+            StatsdLogger child = cache.get(suffix);
+            if (child != null) {
+                return child;
+            }
+            if (isFull(suffix)) {
+                // filled up concurrently
+                overflows.incrementAndGet();
+                return admit(CHILD_OTHER_SUFFIX);
+            }
+            child = StatsdLoggerFactory.newLogger(LoggerFactory.getLogger(getName() + "." + suffix));
+            cache.put(suffix, child);
+            admitted++;
+            return child;
+        }
+    }
+
     //
     // Info level
     //
@@ -77,6 +187,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         infoStat(COUNTER, count, sampleRate);
     }
 
+    @Override
+    public void infoCount(int count, double sampleRate, long sampleId) {
+        infoStat(COUNTER, count, sampleRate, sampleId);
+    }
+
     @Override
     public void infoTime(long millis) {
         infoTime(millis, 1.0);
@@ -87,6 +202,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         infoStat(TIMER, millis, sampleRate);
     }
 
+    @Override
+    public void infoTime(long millis, double sampleRate, long sampleId) {
+        infoStat(TIMER, millis, sampleRate, sampleId);
+    }
+
     @Override
     public void infoGauge(int value) {
         infoStat(GAUGE, value, 1.0);
@@ -94,12 +214,36 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
 
     @Override
     public void infoStat(StatsdStatType type, long value, double sampleRate) {
-        if (isInfoEnabled()) logger.info( //
+        if (isInfoEnabled() && StatsdSampler.sample(sampleRate)) logger.info( //
                 statMarker(type, value, sampleRate), //
                 statMessage(type, value, sampleRate), //
                 statArgs(type, value, sampleRate));
     }
 
+    @Override
+    public void infoStat(StatsdStatType type, long value, double sampleRate, long sampleId) {
+        if (isInfoEnabled() && StatsdSampler.sample(sampleRate, sampleId)) logger.info( //
+                statMarker(type, value, sampleRate), //
+                statMessage(type, value, sampleRate), //
+                statArgs(type, value, sampleRate));
+    }
+
+    @Override
+    public void infoBatch(StatsdBatch batch) {
+        if (isInfoEnabled() && !batch.isEmpty()) {
+            batch.hold();
+            try {
+                logger.info( //
+                        batchMarker(batch), //
+                        batchMessage(batch), //
+                        batchArgs(batch));
+            }
+            finally {
+                batch.release();
+            }
+        }
+    }
+
     //
     // Debug level
     //
@@ -129,6 +273,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         debugStat(COUNTER, count, sampleRate);
     }
 
+    @Override
+    public void debugCount(int count, double sampleRate, long sampleId) {
+        debugStat(COUNTER, count, sampleRate, sampleId);
+    }
+
     @Override
     public void debugTime(long millis) {
         debugTime(millis, 1.0);
@@ -139,6 +288,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         debugStat(TIMER, millis, sampleRate);
     }
 
+    @Override
+    public void debugTime(long millis, double sampleRate, long sampleId) {
+        debugStat(TIMER, millis, sampleRate, sampleId);
+    }
+
     @Override
     public void debugGauge(int value) {
         debugStat(GAUGE, value, 1.0);
@@ -146,12 +300,36 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
 
     @Override
     public void debugStat(StatsdStatType type, long value, double sampleRate) {
-        if (isDebugEnabled()) logger.debug( //
+        if (isDebugEnabled() && StatsdSampler.sample(sampleRate)) logger.debug( //
                 statMarker(type, value, sampleRate), //
                 statMessage(type, value, sampleRate), //
                 statArgs(type, value, sampleRate));
     }
 
+    @Override
+    public void debugStat(StatsdStatType type, long value, double sampleRate, long sampleId) {
+        if (isDebugEnabled() && StatsdSampler.sample(sampleRate, sampleId)) logger.debug( //
+                statMarker(type, value, sampleRate), //
+                statMessage(type, value, sampleRate), //
+                statArgs(type, value, sampleRate));
+    }
+
+    @Override
+    public void debugBatch(StatsdBatch batch) {
+        if (isDebugEnabled() && !batch.isEmpty()) {
+            batch.hold();
+            try {
+                logger.debug( //
+                        batchMarker(batch), //
+                        batchMessage(batch), //
+                        batchArgs(batch));
+            }
+            finally {
+                batch.release();
+            }
+        }
+    }
+
     //
     // Trace level
     //
@@ -181,6 +359,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         traceStat(COUNTER, count, sampleRate);
     }
 
+    @Override
+    public void traceCount(int count, double sampleRate, long sampleId) {
+        traceStat(COUNTER, count, sampleRate, sampleId);
+    }
+
     @Override
     public void traceTime(long millis) {
         traceTime(millis, 1.0);
@@ -191,6 +374,11 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
         traceStat(TIMER, millis, sampleRate);
     }
 
+    @Override
+    public void traceTime(long millis, double sampleRate, long sampleId) {
+        traceStat(TIMER, millis, sampleRate, sampleId);
+    }
+
     @Override
     public void traceGauge(int value) {
         traceStat(GAUGE, value, 1.0);
@@ -198,12 +386,36 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
 
     @Override
     public void traceStat(StatsdStatType type, long value, double sampleRate) {
-        if (isTraceEnabled()) logger.trace( //
+        if (isTraceEnabled() && StatsdSampler.sample(sampleRate)) logger.trace( //
+                statMarker(type, value, sampleRate), //
+                statMessage(type, value, sampleRate), //
+                statArgs(type, value, sampleRate));
+    }
+
+    @Override
+    public void traceStat(StatsdStatType type, long value, double sampleRate, long sampleId) {
+        if (isTraceEnabled() && StatsdSampler.sample(sampleRate, sampleId)) logger.trace( //
                 statMarker(type, value, sampleRate), //
                 statMessage(type, value, sampleRate), //
                 statArgs(type, value, sampleRate));
     }
 
+    @Override
+    public void traceBatch(StatsdBatch batch) {
+        if (isTraceEnabled() && !batch.isEmpty()) {
+            batch.hold();
+            try {
+                logger.trace( //
+                        batchMarker(batch), //
+                        batchMessage(batch), //
+                        batchArgs(batch));
+            }
+            finally {
+                batch.release();
+            }
+        }
+    }
+
     //
     // override-able methods for creating the actual parameters used to call the underlying logger with
     // (the default behaviour suits logback)
@@ -222,4 +434,18 @@ public class StatsdLoggerImpl implements StatsdLogger, Serializable {
                 type, value, sampleRate
         };
     }
+
+    protected Marker batchMarker(StatsdBatch batch) {
+        return null;
+    }
+
+    protected String batchMessage(StatsdBatch batch) {
+        return null;
+    }
+
+    protected Object[] batchArgs(StatsdBatch batch) {
+        return new Object[] {
+                batch
+        };
+    }
 }
@@ -0,0 +1,33 @@
+package org.ubercraft.statsd;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+/**
+ * Registers the JMX views of the client components with the platform MBean server.
+ */
+final class StatsdMBeans {
+
+    private static final String DOMAIN = "org.ubercraft.statsd";
+
+    private StatsdMBeans() {}
+
+    /**
+     * Registers the given MBean, with a name of the given type and name (usually the client endpoint).
+     */
+    static ObjectName register(Object mbean, String type, String name) throws Exception {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+        return objectName;
+    }
+
+    static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (Exception e) {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.ubercraft.statsd;
+
+import static org.ubercraft.statsd.StatsdEncoders.putDecimal;
+import static org.ubercraft.statsd.StatsdEncoders.putLong;
+import static org.ubercraft.statsd.StatsdEncoders.putStatsdType;
+import static org.ubercraft.statsd.StatsdEncoders.putString;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes stats in the plain statsd format, i.e. <code>&lt;key&gt;:&lt;value&gt;|&lt;type&gt;[|@&lt;rate&gt;]</code>.
+ *
+ * @see StatsdEncoders#STATSD
+ */
+public class StatsdPlainEncoder implements StatsdEncoder {
+
+    @Override
+    public void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        putString(buffer, key);
+        buffer.put((byte)':');
+        putLong(buffer, value);
+        buffer.put((byte)'|');
+        putStatsdType(buffer, type);
+        if (sampleRate < 1.0D) {
+            buffer.put((byte)'|').put((byte)'@');
+            putDecimal(buffer, sampleRate, 6);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.ubercraft.statsd;
+
+/**
+ * Enumerates the priorities of the queue lanes of a {@link StatsdClient}. Each priority has its own queue, so that a
+ * flood of low priority stats cannot crowd out higher priority ones. The weight of a priority is the number of entries
+ * taken from its lane, in each round of sending, relative to the other lanes.
+ */
+public enum StatsdPriority {
+
+    HIGH(4),
+    NORMAL(2),
+    LOW(1);
+
+    private final int weight;
+
+    private StatsdPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,43 @@
+package org.ubercraft.statsd;
+
+import java.util.Random;
+
+/**
+ * Makes sampling decisions for sampled stats, i.e. stats with a sample rate less than 1.0.
+ * <p/>
+ * By default each decision is random. Alternatively a decision can be made deterministically from a caller supplied
+ * id (for example a trace or request id), using {@link #sample(double, long)}. All stats sampled with the same id and
+ * sample rate are then either all kept or all dropped together. For a given id, the stats kept at a lower sample rate
+ * are a subset of those kept at any higher rate. String ids can be used via their hash code.
+ */
+public final class StatsdSampler {
+
+    private static final Random RANDOM = new Random();
+
+    private static final double UNIT = 1.0D / (1L << 53);
+
+    private StatsdSampler() {}
+
+    /**
+     * @return true if a stat with the given sample rate should be kept
+     */
+    public static boolean sample(double sampleRate) {
+        return sampleRate >= 1.0D || RANDOM.nextDouble() <= sampleRate;
+    }
+
+    /**
+     * @return true if a stat with the given sample rate should be kept, for the given id
+     */
+    public static boolean sample(double sampleRate, long id) {
+        return sampleRate >= 1.0D || hash(id) < sampleRate;
+    }
+
+    // maps the id to a well mixed value in [0, 1)
+    static double hash(long id) {
+        long h = id + 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        h = h ^ (h >>> 31);
+        return (h >>> 11) * UNIT;
+    }
+}
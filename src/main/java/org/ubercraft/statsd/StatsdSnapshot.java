@@ -0,0 +1,402 @@
+package org.ubercraft.statsd;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+/**
+ * An in-process view of the stats recently sent through a {@link StatsdClient}, so that decisions can be made locally
+ * (e.g. for health checks) without querying the metrics backend. Set on a client with
+ * {@link StatsdClient#setSnapshot(StatsdSnapshot)}, or via the <code>snapshotKeys</code> property of
+ * {@link StatsdLogbackAppender}. A snapshot can also be read via JMX, see {@link #register(String)}.
+ * <p/>
+ * For each key the snapshot keeps, over a sliding window of <code>window</code> milliseconds:
+ * <ul>
+ * <li>counters: the total, scaled up by the sample rate, and the rate per second</li>
+ * <li>gauges: the last value</li>
+ * <li>timers: the count, mean, minimum and maximum of the sampled timings</li>
+ * </ul>
+ * The window is divided into a fixed number of slots, each a ring of atomic arrays per key, so recording a stat does
+ * not allocate once its key is known, and threads recording the same key do not block each other. Old slots are
+ * reused as the window slides, so the window is accurate to within one slot. Reads are not atomic across slots, so a
+ * query made while stats are being recorded may see only some of them. The number of keys is bounded by <code>maxKeys</code>; stats for further keys are not recorded, and
+ * counted by {@link #getDroppedKeyCount()}. Queries for unknown keys return zero (or null, for gauges).
+ */
+public class StatsdSnapshot implements StatsdSnapshotMBean {
+
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    public static final long DEFAULT_WINDOW = 60000;
+
+    public static final int DEFAULT_SLOTS = 12;
+
+    private final int maxKeys;
+    private final long window;
+    private final int slots;
+    private final long slotMillis;
+
+    private final ConcurrentMap<String, Series> counters = new ConcurrentHashMap<String, Series>();
+    private final ConcurrentMap<String, Series> gauges = new ConcurrentHashMap<String, Series>();
+    private final ConcurrentMap<String, Series> timers = new ConcurrentHashMap<String, Series>();
+
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final AtomicLong droppedKeyCount = new AtomicLong();
+
+    private ObjectName objectName;
+
+    public StatsdSnapshot() {
+        this(DEFAULT_MAX_KEYS, DEFAULT_WINDOW);
+    }
+
+    public StatsdSnapshot(int maxKeys, long window) {
+        this(maxKeys, window, DEFAULT_SLOTS);
+    }
+
+    public StatsdSnapshot(int maxKeys, long window, int slots) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("max keys must be positive: " + maxKeys);
+        }
+        if (slots <= 0 || window < slots) {
+            throw new IllegalArgumentException("window must be at least one millisecond per slot: " + window);
+        }
+        this.maxKeys = maxKeys;
+        this.slots = slots;
+        this.slotMillis = window / slots;
+        this.window = slotMillis * slots;
+    }
+
+    /**
+     * Records a stat. Called by the client for each stat sent (or enqueued) through it.
+     */
+    public void record(StatsdStatType type, String key, long value, double sampleRate, long timestamp) {
+        ConcurrentMap<String, Series> map = map(type);
+        Series series = map.get(key);
+        if (series == null) {
+            series = create(map, type, key);
+            if (series == null) {
+                return;
+            }
+        }
+        series.record(value, sampleRate, timestamp);
+    }
+
+    /**
+     * Registers this snapshot with the platform MBean server, under a name made from the given name. Does nothing if
+     * already registered.
+     */
+    public synchronized void register(String name) throws Exception {
+        if (objectName == null) {
+            objectName = StatsdMBeans.register(this, "StatsdSnapshot", name);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName != null) {
+            StatsdMBeans.unregister(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getWindow() {
+        return window;
+    }
+
+    @Override
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    @Override
+    public int getKeyCount() {
+        return keyCount.get();
+    }
+
+    @Override
+    public long getDroppedKeyCount() {
+        return droppedKeyCount.get();
+    }
+
+    @Override
+    public String[] getCounterKeys() {
+        return keys(counters);
+    }
+
+    @Override
+    public String[] getGaugeKeys() {
+        return keys(gauges);
+    }
+
+    @Override
+    public String[] getTimerKeys() {
+        return keys(timers);
+    }
+
+    @Override
+    public long getCounterTotal(String key) {
+        return getCounterTotal(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public double getCounterRate(String key) {
+        return getCounterRate(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public Long getGauge(String key) {
+        return getGauge(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public long getTimerCount(String key) {
+        return getTimerCount(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public double getTimerMean(String key) {
+        return getTimerMean(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public long getTimerMin(String key) {
+        return getTimerMin(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public long getTimerMax(String key) {
+        return getTimerMax(key, System.currentTimeMillis());
+    }
+
+    //
+    // as above, at a given time
+    //
+
+    long getCounterTotal(String key, long now) {
+        Series series = counters.get(key);
+        return series == null ? 0 : series.sum(now);
+    }
+
+    double getCounterRate(String key, long now) {
+        // the window is made up of the full slots before the current slot, and the elapsed part of the current slot
+        long elapsed = (slots - 1) * slotMillis + now % slotMillis + 1;
+        return getCounterTotal(key, now) * 1000.0D / elapsed;
+    }
+
+    Long getGauge(String key, long now) {
+        Series series = gauges.get(key);
+        return series == null ? null : series.last(now);
+    }
+
+    long getTimerCount(String key, long now) {
+        Series series = timers.get(key);
+        return series == null ? 0 : series.count(now);
+    }
+
+    double getTimerMean(String key, long now) {
+        Series series = timers.get(key);
+        return series == null ? 0 : series.mean(now);
+    }
+
+    long getTimerMin(String key, long now) {
+        Series series = timers.get(key);
+        return series == null ? 0 : series.min(now);
+    }
+
+    long getTimerMax(String key, long now) {
+        Series series = timers.get(key);
+        return series == null ? 0 : series.max(now);
+    }
+
+    private ConcurrentMap<String, Series> map(StatsdStatType type) {
+        switch (type) {
+            case COUNTER:
+                return counters;
+            case GAUGE:
+                return gauges;
+            default:
+                return timers;
+        }
+    }
+
+    private Series create(ConcurrentMap<String, Series> map, StatsdStatType type, String key) {
+        if (keyCount.incrementAndGet() > maxKeys) {
+            keyCount.decrementAndGet();
+            droppedKeyCount.incrementAndGet();
+            return null;
+        }
+        Series series = new Series(type);
+        Series existing = map.putIfAbsent(key, series);
+        if (existing != null) {
+            keyCount.decrementAndGet();
+            return existing;
+        }
+        return series;
+    }
+
+    private static String[] keys(ConcurrentMap<String, Series> map) {
+        String[] keys = map.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private class Series {
+
+        // held in a slot's epoch while the slot is being reset for a new epoch, beyond any real epoch
+        private static final long RESETTING = Long.MAX_VALUE;
+
+        // the slot number held in each slot, or -1 if none
+        private final AtomicLongArray epochs;
+        private final AtomicLongArray sums;
+        private final AtomicLongArray counts;
+        private final AtomicLongArray mins;
+        private final AtomicLongArray maxs;
+
+        // for gauges
+        private volatile long last;
+        private final AtomicLong lastTimestamp;
+
+        Series(StatsdStatType type) {
+            if (type == StatsdStatType.GAUGE) {
+                epochs = sums = counts = mins = maxs = null;
+                lastTimestamp = new AtomicLong();
+                return;
+            }
+            lastTimestamp = null;
+            epochs = new AtomicLongArray(slots);
+            for (int i = 0; i < slots; i++) {
+                epochs.set(i, -1);
+            }
+            sums = new AtomicLongArray(slots);
+            if (type == StatsdStatType.TIMER) {
+                counts = new AtomicLongArray(slots);
+                mins = new AtomicLongArray(slots);
+                maxs = new AtomicLongArray(slots);
+            }
+            else {
+                counts = mins = maxs = null;
+            }
+        }
+
+        void record(long value, double sampleRate, long timestamp) {
+            if (epochs == null) {
+                // concurrent gauges of the same key are unordered anyway, so only the latest timestamp is kept
+                for (;;) {
+                    long lastTime = lastTimestamp.get();
+                    if (timestamp < lastTime) {
+                        return;
+                    }
+                    if (lastTimestamp.compareAndSet(lastTime, timestamp)) {
+                        last = value;
+                        return;
+                    }
+                }
+            }
+
+            long epoch = timestamp / slotMillis;
+            int i = (int)(epoch % slots);
+            for (;;) {
+                long slotEpoch = epochs.get(i);
+                if (slotEpoch == epoch) {
+                    break;
+                }
+                if (slotEpoch == RESETTING) {
+                    // another thread is moving the slot on, which takes a moment
+                    Thread.yield();
+                    continue;
+                }
+                if (slotEpoch > epoch) {
+                    // too old, the slot has already been reused
+                    return;
+                }
+                if (epochs.compareAndSet(i, slotEpoch, RESETTING)) {
+                    sums.set(i, 0);
+                    if (counts != null) {
+                        counts.set(i, 0);
+                        mins.set(i, Long.MAX_VALUE);
+                        maxs.set(i, Long.MIN_VALUE);
+                    }
+                    epochs.set(i, epoch);
+                    break;
+                }
+            }
+
+            if (counts == null) {
+                sums.addAndGet(i, sampleRate > 0 && sampleRate < 1.0D ? Math.round(value / sampleRate) : value);
+            }
+            else {
+                sums.addAndGet(i, value);
+                counts.incrementAndGet(i);
+                long min;
+                while (value < (min = mins.get(i)) && !mins.compareAndSet(i, min, value)) {
+                    // retry
+                }
+                long max;
+                while (value > (max = maxs.get(i)) && !maxs.compareAndSet(i, max, value)) {
+                    // retry
+                }
+            }
+        }
+
+        Long last(long now) {
+            long value = last;
+            return now - lastTimestamp.get() < window ? value : null;
+        }
+
+        long sum(long now) {
+            long sum = 0;
+            for (int i = 0; i < slots; i++) {
+                if (current(i, now)) {
+                    sum += sums.get(i);
+                }
+            }
+            return sum;
+        }
+
+        long count(long now) {
+            long count = 0;
+            for (int i = 0; i < slots; i++) {
+                if (current(i, now)) {
+                    count += counts.get(i);
+                }
+            }
+            return count;
+        }
+
+        double mean(long now) {
+            long count = count(now);
+            return count == 0 ? 0 : (double)sum(now) / count;
+        }
+
+        long min(long now) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < slots; i++) {
+                if (current(i, now) && counts.get(i) > 0) {
+                    min = Math.min(min, mins.get(i));
+                }
+            }
+            return min == Long.MAX_VALUE ? 0 : min;
+        }
+
+        long max(long now) {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < slots; i++) {
+                if (current(i, now) && counts.get(i) > 0) {
+                    max = Math.max(max, maxs.get(i));
+                }
+            }
+            return max == Long.MIN_VALUE ? 0 : max;
+        }
+
+        // true if the slot is within the window ending now
+        private boolean current(int i, long now) {
+            long epoch = now / slotMillis;
+            long slotEpoch = epochs.get(i);
+            return slotEpoch > epoch - slots && slotEpoch <= epoch;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.ubercraft.statsd;
+
+/**
+ * The JMX management interface of {@link StatsdSnapshot}.
+ */
+public interface StatsdSnapshotMBean {
+
+    long getWindow();
+
+    int getMaxKeys();
+
+    int getKeyCount();
+
+    long getDroppedKeyCount();
+
+    String[] getCounterKeys();
+
+    String[] getGaugeKeys();
+
+    String[] getTimerKeys();
+
+    long getCounterTotal(String key);
+
+    double getCounterRate(String key);
+
+    Long getGauge(String key);
+
+    long getTimerCount(String key);
+
+    double getTimerMean(String key);
+
+    long getTimerMin(String key);
+
+    long getTimerMax(String key);
+}
@@ -0,0 +1,393 @@
+package org.ubercraft.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+/**
+ * A fixed size ring buffer of encoded stats, backed by a memory-mapped file. Used by {@link StatsdClient} as an
+ * overflow tier behind its in-memory queue: when the queue is full (or a send fails), stats are spilled here instead of
+ * being dropped, and are replayed in their original order once the client's send thread has caught up.
+ * <p/>
+ * Since the buffer lives in a mapped file, spilling does not grow the heap or create work for the garbage collector.
+ * When the buffer is full the oldest stats are discarded to make room for new ones. Stats older than
+ * <code>maxAge</code> milliseconds at replay time are discarded rather than replayed. The buffer is a transient store
+ * only; its contents are not recovered if the process restarts.
+ * <p/>
+ * The file is locked while the buffer is open, so it cannot be used by two buffers at once, in this or any other
+ * process. Should a record still be found to be corrupt, e.g. because the file was written to regardless, the contents
+ * of the buffer are discarded (and counted as dropped) rather than replayed.
+ * <p/>
+ * The number of bytes spilled, replayed, expired and dropped (overwritten because the buffer was full, or too large to
+ * fit at all) are available via the corresponding getters, and via JMX once registered, see {@link #register(String)}.
+ */
+public class StatsdSpillBuffer implements StatsdSpillBufferMBean {
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8; // length + timestamp
+
+    private final File file;
+    private final int capacity;
+    private final long maxAge;
+
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private MappedByteBuffer buffer; // null once closed
+
+    private int head; // next record to read
+    private int tail; // next position to write
+    private int used;
+
+    private long spilledBytes;
+    private long replayedBytes;
+    private long expiredBytes;
+    private long droppedBytes;
+
+    private ObjectName objectName;
+
+    /**
+     * @param file the file to map, created if necessary
+     * @param capacity the size of the ring buffer in bytes
+     * @param maxAge the maximum age in milliseconds of stats to replay, 0 or less for no limit
+     */
+    public StatsdSpillBuffer(File file, int capacity, long maxAge) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("null file");
+        }
+        if (capacity <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("capacity too small: " + capacity);
+        }
+
+        this.file = file;
+        this.capacity = capacity;
+        this.maxAge = maxAge;
+
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            try {
+                this.lock = raf.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException e) {
+                throw new IOException("spill file already in use: " + file);
+            }
+            if (lock == null) {
+                throw new IOException("spill file locked by another process: " + file);
+            }
+            raf.setLength(capacity);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Registers this buffer with the platform MBean server, under a name made from the given name. Does nothing if
+     * already registered.
+     */
+    public synchronized void register(String name) throws Exception {
+        if (objectName == null) {
+            objectName = StatsdMBeans.register(this, "StatsdSpillBuffer", name);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName != null) {
+            StatsdMBeans.unregister(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Adds a stat to the tail of the buffer, discarding the oldest stats if required to make room.
+     *
+     * @return false if the stat is too large to ever fit in this buffer
+     */
+    public boolean offer(byte[] data, long timestamp) {
+        return offer(data, 0, data.length, timestamp);
+    }
+
+    /**
+     * Adds a stat, given as a range of bytes, to the tail of the buffer, discarding the oldest stats if required to
+     * make room.
+     *
+     * @return false if the stat is too large to ever fit in this buffer
+     */
+    public synchronized boolean offer(byte[] data, int offset, int length, long timestamp) {
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > capacity || buffer == null) {
+            droppedBytes += length;
+            return false;
+        }
+        while (capacity - used < recordSize) {
+            droppedBytes += skip();
+        }
+        putInt(tail, length);
+        putLong(tail + 4, timestamp);
+        putBytes(tail + RECORD_HEADER_SIZE, data, offset, length);
+        tail = (tail + recordSize) % capacity;
+        used += recordSize;
+        spilledBytes += length;
+        return true;
+    }
+
+    /**
+     * Removes and returns the stat at the head of the buffer, discarding any that have expired as of <code>now</code>.
+     *
+     * @return the oldest unexpired stat, or null if there is none
+     */
+    public synchronized byte[] poll(long now) {
+        while (used > 0) {
+            int length = headLength();
+            if (length < 0) {
+                break;
+            }
+            long timestamp = getLong(head + 4);
+            if (maxAge > 0 && now - timestamp > maxAge) {
+                expiredBytes += skip();
+                continue;
+            }
+            byte[] data = new byte[length];
+            getBytes(head + RECORD_HEADER_SIZE, data, 0, length);
+            skip();
+            replayedBytes += length;
+            return data;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the stat at the head of the buffer, discarding any that have expired as of <code>now</code>, and writes
+     * it into the given buffer, without allocating. If the stat does not fit in the remaining space of the given
+     * buffer, it is left in place.
+     *
+     * @return the number of bytes written, 0 if there is no unexpired stat, or -1 if the stat did not fit
+     */
+    public synchronized int poll(ByteBuffer into, long now) {
+        while (used > 0) {
+            int length = headLength();
+            if (length < 0) {
+                break;
+            }
+            long timestamp = getLong(head + 4);
+            if (maxAge > 0 && now - timestamp > maxAge) {
+                expiredBytes += skip();
+                continue;
+            }
+            if (into.remaining() < length) {
+                return -1;
+            }
+            int pos = head + RECORD_HEADER_SIZE;
+            for (int i = 0; i < length; i++) {
+                into.put(buffer.get((pos++) % capacity));
+            }
+            skip();
+            replayedBytes += length;
+            return length;
+        }
+        return 0;
+    }
+
+    /**
+     * Moves the stats in this buffer to the tail of the given buffer, keeping their timestamps, so that they are
+     * replayed (or expire) from there instead.
+     */
+    public void drainTo(StatsdSpillBuffer to) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        List<Long> timestamps = new ArrayList<Long>();
+        synchronized (this) {
+            while (used > 0) {
+                int length = headLength();
+                if (length < 0) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                getBytes(head + RECORD_HEADER_SIZE, data, 0, length);
+                records.add(data);
+                timestamps.add(getLong(head + 4));
+                skip();
+            }
+        }
+        // not holding this lock, so two buffers can never wait for each other
+        for (int i = 0; i < records.size(); i++) {
+            to.offer(records.get(i), timestamps.get(i));
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return used == 0;
+    }
+
+    @Override
+    public synchronized int getUsedBytes() {
+        return used;
+    }
+
+    @Override
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    @Override
+    public synchronized long getReplayedBytes() {
+        return replayedBytes;
+    }
+
+    @Override
+    public synchronized long getExpiredBytes() {
+        return expiredBytes;
+    }
+
+    @Override
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Discards the contents of the buffer, unmaps and unlocks the file. Once closed, stats offered are dropped.
+     */
+    public synchronized void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        head = tail = used = 0;
+        unmap(buffer);
+        buffer = null;
+        try {
+            lock.release();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    // returns the data length of the record at the head, or -1 if it is corrupt, in which case the buffer is reset
+    private int headLength() {
+        int length = getInt(head);
+        if (length < 0 || length > used - RECORD_HEADER_SIZE) {
+            droppedBytes += used;
+            head = tail = used = 0;
+            return -1;
+        }
+        return length;
+    }
+
+    // removes the record at the head, returning its data length
+    private int skip() {
+        int length = headLength();
+        if (length < 0) {
+            return 0;
+        }
+        int recordSize = RECORD_HEADER_SIZE + length;
+        head = (head + recordSize) % capacity;
+        used -= recordSize;
+        return length;
+    }
+
+    // releases the mapping now, rather than whenever the buffer happens to be garbage collected
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        }
+        catch (NoSuchMethodException e) {
+            // earlier versions, see below
+        }
+        catch (Exception e) {
+            // left to the garbage collector
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        }
+        catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    //
+    // absolute access that wraps around the end of the buffer
+    //
+
+    private void putInt(int pos, int value) {
+        for (int i = 3; i >= 0; i--) {
+            buffer.put((pos++) % capacity, (byte)(value >>> (i * 8)));
+        }
+    }
+
+    private void putLong(int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer.put((pos++) % capacity, (byte)(value >>> (i * 8)));
+        }
+    }
+
+    private void putBytes(int pos, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer.put((pos++) % capacity, data[i]);
+        }
+    }
+
+    private int getInt(int pos) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buffer.get((pos++) % capacity) & 0xff);
+        }
+        return value;
+    }
+
+    private long getLong(int pos) {
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer.get((pos++) % capacity) & 0xffL);
+        }
+        return value;
+    }
+
+    private void getBytes(int pos, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            data[i] = buffer.get((pos++) % capacity);
+        }
+    }
+}
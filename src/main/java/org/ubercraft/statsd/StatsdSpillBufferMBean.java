@@ -0,0 +1,21 @@
+package org.ubercraft.statsd;
+
+/**
+ * The JMX management interface of {@link StatsdSpillBuffer}.
+ */
+public interface StatsdSpillBufferMBean {
+
+    int getCapacity();
+
+    long getMaxAge();
+
+    int getUsedBytes();
+
+    long getSpilledBytes();
+
+    long getReplayedBytes();
+
+    long getExpiredBytes();
+
+    long getDroppedBytes();
+}
@@ -0,0 +1,66 @@
+package org.ubercraft.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent increments over a number of independent cells ("stripes"), so that many threads
+ * incrementing the same counter do not contend on a single memory location.
+ * <p/>
+ * Each thread is mapped to a stripe by its thread id. Stripes are padded apart from each other to avoid false sharing.
+ * There are twice as many stripes as processors, rounded up to a power of two, but no more than eight, so a counter
+ * takes at most 512 bytes however large the machine. Reading the counter value via {@link #sum()} or
+ * {@link #sumThenReset()} visits every stripe, so is more expensive than incrementing, which is the intended
+ * trade-off.
+ */
+public class StatsdStripedCounter {
+
+    private static final int PADDING = 8; // longs per stripe, i.e. one 64 byte cache line
+
+    static final int MAX_STRIPES = 8;
+
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors * 2 && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public long sumThenReset() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.getAndSet(i * PADDING, 0L);
+        }
+        return sum;
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -8,15 +8,21 @@ public interface StatsdTimer extends StatsdLoggerIBase {
 
     void infoTime(long millis, double sampleRate);
 
+    void infoTime(long millis, double sampleRate, long sampleId);
+
     // Debug level
 
     void debugTime(long millis);
 
     void debugTime(long millis, double sampleRate);
 
+    void debugTime(long millis, double sampleRate, long sampleId);
+
     // Trace level
 
     void traceTime(long millis);
 
     void traceTime(long millis, double sampleRate);
+
+    void traceTime(long millis, double sampleRate, long sampleId);
 }
@@ -0,0 +1,375 @@
+package org.ubercraft.statsd.annotation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the stats code for methods annotated with {@link Timed} and {@link Counted}, at compile time.
+ * <p/>
+ * An annotation processor cannot change the class being compiled, so for each class <code>Foo</code> with annotated
+ * methods a subclass <code>Foo_Statsd</code> is generated in the same package, which overrides each annotated method.
+ * The overrides log their stats through <code>static final</code> {@link org.ubercraft.statsd.StatsdLogger} fields,
+ * then call the original method via <code>super</code>. A timed method checks whether its level is enabled before
+ * reading the clock, so a disabled timer costs one level check. There is no reflection, proxying or bytecode rewriting
+ * at runtime: create instances of the generated class instead of the annotated one (e.g. in a factory or via dependency
+ * injection). The generated class has a constructor matching each non-private constructor of the annotated class.
+ * <p/>
+ * Annotated methods must be overridable, i.e. not private, static, final or abstract, and the annotated class must be
+ * a non-final, non-private, top level or static nested class. Other uses are reported as compile errors. The generated
+ * class is public if the annotated class is, otherwise package-private (a top level class cannot be protected).
+ * <p/>
+ * The processor is not part of the main jar, so it does not run in the build of every project that uses this
+ * library. It is shipped as a separate artifact, with the <code>processor</code> classifier, in which it is registered
+ * as a service. Add that artifact to the compiler's annotation processor path (or classpath) to enable it, e.g. with
+ * the maven-compiler-plugin:
+ *
+ * <pre>
+ * &lt;annotationProcessorPaths&gt;
+ *     &lt;path&gt;
+ *         &lt;groupId&gt;org.ubercraft.statsd&lt;/groupId&gt;
+ *         &lt;artifactId&gt;statsd-over-slf4j&lt;/artifactId&gt;
+ *         &lt;version&gt;...&lt;/version&gt;
+ *         &lt;classifier&gt;processor&lt;/classifier&gt;
+ *     &lt;/path&gt;
+ * &lt;/annotationProcessorPaths&gt;
+ * </pre>
+ */
+@SupportedAnnotationTypes({
+        "org.ubercraft.statsd.annotation.Timed", "org.ubercraft.statsd.annotation.Counted"
+})
+public class StatsdAnnotationProcessor extends AbstractProcessor {
+
+    static final String SUFFIX = "_Statsd";
+
+    private static final String LOGGER = "org.ubercraft.statsd.StatsdLogger";
+    private static final String LOGGER_FACTORY = "org.ubercraft.statsd.StatsdLoggerFactory";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, List<ExecutableElement>> classes = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+        collect(classes, roundEnv.getElementsAnnotatedWith(Timed.class));
+        collect(classes, roundEnv.getElementsAnnotatedWith(Counted.class));
+
+        for (Map.Entry<TypeElement, List<ExecutableElement>> entry : classes.entrySet()) {
+            TypeElement type = entry.getKey();
+            // check both, to report all errors
+            boolean valid = checkClass(type);
+            valid = checkMethods(entry.getValue()) && valid;
+            if (valid) {
+                try {
+                    generate(type, entry.getValue());
+                }
+                catch (IOException e) {
+                    error("could not generate stats class for " + type + ": " + e, type);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void collect(Map<TypeElement, List<ExecutableElement>> classes, Set<? extends Element> elements) {
+        for (Element element : elements) {
+            if (element.getKind() != ElementKind.METHOD) {
+                continue;
+            }
+            ExecutableElement method = (ExecutableElement)element;
+            TypeElement type = (TypeElement)method.getEnclosingElement();
+            List<ExecutableElement> methods = classes.get(type);
+            if (methods == null) {
+                methods = new ArrayList<ExecutableElement>();
+                classes.put(type, methods);
+            }
+            if (!methods.contains(method)) {
+                methods.add(method);
+            }
+        }
+    }
+
+    private boolean checkClass(TypeElement type) {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (type.getKind() != ElementKind.CLASS) {
+            error("@Timed and @Counted can only be used on methods of classes", type);
+            return false;
+        }
+        if (modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.PRIVATE)) {
+            error("class with @Timed or @Counted methods must not be final or private", type);
+            return false;
+        }
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL && //
+                !(type.getNestingKind() == NestingKind.MEMBER && modifiers.contains(Modifier.STATIC))) {
+            error("class with @Timed or @Counted methods must be a top level or static nested class", type);
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (!constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error("class with @Timed or @Counted methods must have a non-private constructor", type);
+        return false;
+    }
+
+    private boolean checkMethods(List<ExecutableElement> methods) {
+        boolean valid = true;
+        for (ExecutableElement method : methods) {
+            Set<Modifier> modifiers = method.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || //
+                    modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.ABSTRACT)) {
+                error("@Timed or @Counted method must not be private, static, final or abstract", method);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private void generate(TypeElement type, List<ExecutableElement> methods) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String className = generatedName(type);
+        String typeParameters = typeParameters(type.getTypeParameters());
+
+        StringBuilder sb = new StringBuilder();
+        if (packageName.length() > 0) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        sb.append("/**\n");
+        sb.append(" * Stats for {@link ").append(type.getQualifiedName()).append("}, generated by ");
+        sb.append(getClass().getName()).append(".\n");
+        sb.append(" */\n");
+        sb.append(type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "").append("class ").append(className);
+        sb.append(typeParameters.trim());
+        sb.append(" extends ").append(type.getQualifiedName()).append(typeArguments(type.getTypeParameters()));
+        sb.append(" {\n");
+
+        // logger fields
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            Timed timed = method.getAnnotation(Timed.class);
+            if (timed != null) {
+                appendField(sb, "TIMER_" + i, key(type, method, timed.key()));
+            }
+            Counted counted = method.getAnnotation(Counted.class);
+            if (counted != null) {
+                appendField(sb, "COUNTER_" + i, key(type, method, counted.key()));
+            }
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (!constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                appendConstructor(sb, className, constructor);
+            }
+        }
+
+        for (int i = 0; i < methods.size(); i++) {
+            appendMethod(sb, methods.get(i), i);
+        }
+
+        sb.append("}\n");
+
+        String name = packageName.length() > 0 ? packageName + "." + className : className;
+        Writer writer = processingEnv.getFiler().createSourceFile(name, type).openWriter();
+        try {
+            writer.write(sb.toString());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private void appendField(StringBuilder sb, String name, String key) {
+        sb.append("\n    private static final ").append(LOGGER).append(' ').append(name).append(" = //\n");
+        sb.append("            ").append(LOGGER_FACTORY).append(".getLogger(\"").append(escape(key)).append("\");\n");
+    }
+
+    private void appendConstructor(StringBuilder sb, String className, ExecutableElement constructor) {
+        sb.append("\n    ").append(visibility(constructor)).append(typeParameters(constructor.getTypeParameters()));
+        sb.append(className);
+        appendParameters(sb, constructor);
+        sb.append(" {\n");
+        sb.append("        super").append(arguments(constructor)).append(";\n");
+        sb.append("    }\n");
+    }
+
+    private void appendMethod(StringBuilder sb, ExecutableElement method, int i) {
+        boolean isVoid = method.getReturnType().getKind() == TypeKind.VOID;
+        String call = "super." + method.getSimpleName() + arguments(method) + ";\n";
+        String result = isVoid ? "" : "return ";
+
+        sb.append("\n    @Override\n");
+        sb.append("    ").append(visibility(method)).append(typeParameters(method.getTypeParameters()));
+        sb.append(method.getReturnType()).append(' ').append(method.getSimpleName());
+        appendParameters(sb, method);
+        sb.append(" {\n");
+
+        Counted counted = method.getAnnotation(Counted.class);
+        if (counted != null) {
+            sb.append("        COUNTER_").append(i).append('.').append(level(counted.level())).append("Count(");
+            if (counted.sampleRate() < 1.0D) {
+                sb.append(counted.sampleRate()).append('D');
+            }
+            sb.append(");\n");
+        }
+
+        Timed timed = method.getAnnotation(Timed.class);
+        if (timed != null) {
+            String level = level(timed.level());
+            String enabled = "is" + Character.toUpperCase(level.charAt(0)) + level.substring(1) + "Enabled()";
+            sb.append("        if (!TIMER_").append(i).append('.').append(enabled).append(") {\n");
+            sb.append("            ").append(result).append(call);
+            if (isVoid) {
+                sb.append("            return;\n");
+            }
+            sb.append("        }\n");
+            sb.append("        long statsdStart = java.lang.System.currentTimeMillis();\n");
+            sb.append("        try {\n");
+            sb.append("            ").append(result).append(call);
+            sb.append("        }\n");
+            sb.append("        finally {\n");
+            sb.append("            TIMER_").append(i).append('.').append(level).append("Time(");
+            sb.append("java.lang.System.currentTimeMillis() - statsdStart");
+            if (timed.sampleRate() < 1.0D) {
+                sb.append(", ").append(timed.sampleRate()).append('D');
+            }
+            sb.append(");\n");
+            sb.append("        }\n");
+        }
+        else {
+            sb.append("        ").append(result).append(call);
+        }
+
+        sb.append("    }\n");
+    }
+
+    private void appendParameters(StringBuilder sb, ExecutableElement method) {
+        sb.append('(');
+        for (Iterator<? extends VariableElement> it = method.getParameters().iterator(); it.hasNext();) {
+            VariableElement parameter = it.next();
+            String type = parameter.asType().toString();
+            if (method.isVarArgs() && !it.hasNext() && type.endsWith("[]")) {
+                type = type.substring(0, type.length() - 2) + "...";
+            }
+            sb.append(type).append(' ').append(parameter.getSimpleName());
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        sb.append(')');
+
+        List<? extends TypeMirror> thrown = method.getThrownTypes();
+        for (int i = 0; i < thrown.size(); i++) {
+            sb.append(i == 0 ? " throws " : ", ").append(thrown.get(i));
+        }
+    }
+
+    private static String arguments(ExecutableElement method) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Iterator<? extends VariableElement> it = method.getParameters().iterator(); it.hasNext();) {
+            sb.append(it.next().getSimpleName());
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String typeParameters(List<? extends TypeParameterElement> parameters) {
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("<");
+        for (int i = 0; i < parameters.size(); i++) {
+            TypeParameterElement parameter = parameters.get(i);
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(parameter.getSimpleName());
+            String separator = " extends ";
+            for (TypeMirror bound : parameter.getBounds()) {
+                if (!bound.toString().equals("java.lang.Object")) {
+                    sb.append(separator).append(bound);
+                    separator = " & ";
+                }
+            }
+        }
+        return sb.append("> ").toString();
+    }
+
+    private static String typeArguments(List<? extends TypeParameterElement> parameters) {
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("<");
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(parameters.get(i).getSimpleName());
+        }
+        return sb.append('>').toString();
+    }
+
+    private static String visibility(Element element) {
+        Set<Modifier> modifiers = element.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return "public ";
+        }
+        if (modifiers.contains(Modifier.PROTECTED)) {
+            return "protected ";
+        }
+        return "";
+    }
+
+    private static String level(StatsdLevel level) {
+        return level.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String key(TypeElement type, ExecutableElement method, String key) {
+        return key.length() > 0 ? key : type.getQualifiedName() + "." + method.getSimpleName();
+    }
+
+    static String generatedName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name + SUFFIX;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private void error(String message, Element element) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
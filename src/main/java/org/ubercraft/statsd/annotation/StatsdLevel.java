@@ -0,0 +1,11 @@
+package org.ubercraft.statsd.annotation;
+
+/**
+ * The logging level at which an annotated method's stat is logged.
+ */
+public enum StatsdLevel {
+
+    INFO,
+    DEBUG,
+    TRACE
+}
@@ -0,0 +1,26 @@
+package org.ubercraft.statsd.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method whose execution time should be logged as a timer stat. See {@link StatsdAnnotationProcessor} for how
+ * the timing code is generated.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Timed {
+
+    /**
+     * The stat key, defaults to the fully qualified class name followed by the method name.
+     */
+    String key() default "";
+
+    StatsdLevel level() default StatsdLevel.INFO;
+
+    double sampleRate() default 1.0D;
+}
@@ -0,0 +1,247 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Guards the hot paths against allocation regressions, by measuring the bytes allocated by the calling thread over a
+ * number of operations (after warming up), and failing if a path exceeds its budget per operation, give or take a small
+ * fixed allowance for the measurement itself.
+ * <p/>
+ * Only the calling thread is measured, so work done by the background send thread of a queued client is excluded.
+ * Queued operations are run in rounds smaller than the queue, with a pause in between to let the queue drain, so that
+ * the queue full error path is not measured.
+ */
+public class StatsdAllocationTest {
+
+    private static final int ROUNDS = 40;
+    private static final int OPS_PER_ROUND = 250;
+    private static final int QUEUE_SIZE = 1000;
+
+    // budgets, in bytes per operation
+    private static final long DISABLED_BUDGET = 0;
+    private static final long SYNC_CLIENT_BUDGET = 0;
+    private static final long ASYNC_CLIENT_BUDGET = 64;
+    private static final long APPENDER_BUDGET = 64;
+    private static final long ENABLED_LOGGER_BUDGET = 512;
+    private static final long SAMPLED_LOGGER_BUDGET = 8; // one enabled logger call in a hundred is kept
+    private static final long JVM_REPORTER_BUDGET = 64; // the MemoryUsage allocated by the JDK
+
+    // in bytes, over all the operations measured
+    private static final long ALLOWANCE = 1024;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private StatsdClient syncClient;
+    private StatsdClient asyncClient;
+
+    private StatsdLogbackAppender appender;
+    private ILoggingEvent event;
+
+    private Logger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean)bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        syncClient = new StatsdClient("localhost", -1) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                // don't measure the socket
+            }
+        };
+        asyncClient = new StatsdClient("localhost", -1, QUEUE_SIZE) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                // don't measure the socket
+            }
+        };
+
+        LoggerContext context = (LoggerContext)LoggerFactory.getILoggerFactory();
+        appender = new StatsdLogbackAppender();
+        appender.setContext(context);
+        appender.setHost("localhost");
+        appender.setQueueSize(QUEUE_SIZE);
+        appender.start();
+
+        // log only to our appender, not to the console as well
+        logger = context.getLogger("statsd.allocation");
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+
+        event = new LoggingEvent(Logger.FQCN, logger, Level.INFO, null, null, new Object[] {
+                StatsdStatType.COUNTER, 1L, 1.0D
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (threadBean == null) {
+            return;
+        }
+        syncClient.shutdown();
+        asyncClient.shutdown();
+        logger.detachAppender(appender);
+        logger.setAdditive(true);
+        appender.stop();
+    }
+
+    @Test
+    public void testDisabledLevel() throws Exception {
+        final StatsdLogger logger = StatsdLoggerFactory.getLogger("nostats.allocation");
+        assertBudget("disabled level", DISABLED_BUDGET, false, new Runnable() {
+            @Override
+            public void run() {
+                logger.traceCount(1);
+                logger.debugTime(10L, 0.5D);
+                logger.traceStat(StatsdStatType.GAUGE, 5L, 1.0D);
+            }
+        });
+    }
+
+    @Test
+    public void testSyncClient() throws Exception {
+        assertBudget("sync client stat", SYNC_CLIENT_BUDGET, false, new Runnable() {
+            @Override
+            public void run() {
+                syncClient.stat(StatsdStatType.COUNTER, "statsd.allocation", 1L, 1.0D);
+            }
+        });
+    }
+
+    @Test
+    public void testSyncBatch() throws Exception {
+        assertBudget("sync client batch", SYNC_CLIENT_BUDGET, false, new Runnable() {
+            @Override
+            public void run() {
+                syncClient.submit(syncClient.batch().count("statsd.allocation.a").time("statsd.allocation.b", 10L));
+            }
+        });
+    }
+
+    @Test
+    public void testAsyncBatch() throws Exception {
+        assertBudget("async client batch", ASYNC_CLIENT_BUDGET, true, new Runnable() {
+            @Override
+            public void run() {
+                StatsdBatch batch = asyncClient.batch();
+                asyncClient.submit(batch.count("statsd.allocation.a").time("statsd.allocation.b", 10L));
+                // the next batch() call reuses the thread's other batch, while this one is still queued
+                StatsdBatch next = asyncClient.batch();
+                asyncClient.submit(next.count("statsd.allocation.a"));
+                while (batch.isPending() || next.isPending()) {
+                    Thread.yield();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        syncClient.setSnapshot(new StatsdSnapshot());
+        assertBudget("sync client stat with snapshot", SYNC_CLIENT_BUDGET, false, new Runnable() {
+            @Override
+            public void run() {
+                syncClient.stat(StatsdStatType.TIMER, "statsd.allocation", 10L, 1.0D);
+            }
+        });
+    }
+
+    @Test
+    public void testAsyncClient() throws Exception {
+        assertBudget("async client stat", ASYNC_CLIENT_BUDGET, true, new Runnable() {
+            @Override
+            public void run() {
+                asyncClient.stat(StatsdStatType.TIMER, "statsd.allocation", 10L, 1.0D);
+            }
+        });
+    }
+
+    @Test
+    public void testAppender() throws Exception {
+        assertBudget("appender append", APPENDER_BUDGET, true, new Runnable() {
+            @Override
+            public void run() {
+                appender.doAppend(event);
+            }
+        });
+    }
+
+    @Test
+    public void testEnabledLogger() throws Exception {
+        // logged through logback, to our appender
+        final StatsdLogger logger = StatsdLoggerFactory.getLogger("statsd.allocation");
+        assertBudget("enabled logger infoCount", ENABLED_LOGGER_BUDGET, true, new Runnable() {
+            @Override
+            public void run() {
+                logger.infoCount(1);
+            }
+        });
+    }
+
+    @Test
+    public void testSampledLogger() throws Exception {
+        // enabled, but mostly sampled out before reaching logback
+        final StatsdLogger logger = StatsdLoggerFactory.getLogger("statsd.allocation");
+        assertBudget("sampled logger infoCount", SAMPLED_LOGGER_BUDGET, true, new Runnable() {
+            @Override
+            public void run() {
+                logger.infoCount(0.01D);
+            }
+        });
+    }
+
+    @Test
+    public void testJvmReporter() throws Exception {
+        final StatsdJvmReporter reporter = new StatsdJvmReporter(syncClient);
+        assertBudget("jvm reporter sample", JVM_REPORTER_BUDGET, false, new Runnable() {
+            @Override
+            public void run() {
+                reporter.report();
+            }
+        });
+    }
+
+    private void assertBudget(String name, long budget, boolean queued, Runnable op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+
+        // warm up, then measure
+        long bytes = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            bytes = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long before = threadBean.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < OPS_PER_ROUND; i++) {
+                    op.run();
+                }
+                bytes += threadBean.getThreadAllocatedBytes(threadId) - before;
+                if (queued) {
+                    Thread.sleep(5);
+                }
+            }
+        }
+
+        long ops = ROUNDS * OPS_PER_ROUND;
+        assertTrue(name + " allocated " + bytes + " bytes in " + ops + " operations, budget is " + budget + //
+                " bytes per operation", bytes <= budget * ops + ALLOWANCE);
+    }
+}
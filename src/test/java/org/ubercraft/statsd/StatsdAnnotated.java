@@ -0,0 +1,45 @@
+package org.ubercraft.statsd;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.ubercraft.statsd.annotation.Counted;
+import org.ubercraft.statsd.annotation.StatsdLevel;
+import org.ubercraft.statsd.annotation.Timed;
+
+/**
+ * Compiled with the annotation processor, which generates {@link StatsdAnnotated_Statsd}.
+ */
+public class StatsdAnnotated<T extends Number> {
+
+    private final String name;
+
+    public StatsdAnnotated() {
+        this("annotated");
+    }
+
+    protected StatsdAnnotated(String name) {
+        this.name = name;
+    }
+
+    @Timed(key = "statsd.annotated.timed")
+    public String timed(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return name;
+    }
+
+    @Counted(key = "statsd.annotated.counted")
+    public void counted(List<? extends T> values, String... more) {}
+
+    @Timed(key = "statsd.annotated.both")
+    @Counted(key = "statsd.annotated.both")
+    protected int both(int i) throws IOException {
+        if (i < 0) {
+            throw new IOException("negative");
+        }
+        return i;
+    }
+
+    @Timed(key = "statsd.annotated.trace", level = StatsdLevel.TRACE)
+    void trace() {}
+}
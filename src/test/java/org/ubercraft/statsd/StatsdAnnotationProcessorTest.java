@@ -0,0 +1,240 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.ubercraft.statsd.annotation.StatsdAnnotationProcessor;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class StatsdAnnotationProcessorTest {
+
+    private Logger logger;
+    private ListAppender<ILoggingEvent> appender;
+
+    @Before
+    public void setUp() {
+        LoggerContext context = (LoggerContext)LoggerFactory.getILoggerFactory();
+        appender = new ListAppender<ILoggingEvent>();
+        appender.setContext(context);
+        appender.start();
+
+        logger = context.getLogger("statsd.annotated");
+        logger.setAdditive(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void tearDown() {
+        logger.detachAppender(appender);
+        logger.setAdditive(true);
+        logger.setLevel(null);
+        appender.stop();
+    }
+
+    @Test
+    public void testGeneratedClass() throws Exception {
+        StatsdAnnotated<Integer> annotated = new StatsdAnnotated_Statsd<Integer>();
+
+        assertEquals("annotated", annotated.timed(5));
+        assertStat(0, "statsd.annotated.timed", StatsdStatType.TIMER);
+        assertTrue((Long)appender.list.get(0).getArgumentArray()[1] >= 5);
+
+        annotated.counted(Arrays.asList(1, 2), "a", "b");
+        assertStat(1, "statsd.annotated.counted", StatsdStatType.COUNTER);
+
+        assertEquals(1, annotated.both(1));
+        assertStat(2, "statsd.annotated.both", StatsdStatType.COUNTER);
+        assertStat(3, "statsd.annotated.both", StatsdStatType.TIMER);
+
+        // timed even when the method throws
+        try {
+            annotated.both(-1);
+            fail();
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertEquals(6, appender.list.size());
+
+        // level disabled
+        annotated.trace();
+        assertEquals(6, appender.list.size());
+
+        assertEquals("named", new StatsdAnnotated_Statsd<Long>("named").timed(0));
+    }
+
+    @Test
+    public void testProtectedNestedClass() throws Exception {
+        // generated as a package-private top level class, since it cannot be protected
+        assertCompiles("Outer", //
+                "public class Outer {", //
+                "    protected static class Inner {", //
+                "        @org.ubercraft.statsd.annotation.Timed public void run() {}", //
+                "    }", //
+                "    Inner inner() { return new Outer_Inner_Statsd(); }", //
+                "}");
+    }
+
+    @Test
+    public void testFinalClass() throws Exception {
+        assertError("class with @Timed or @Counted methods must not be final or private", "Final", //
+                "public final class Final {", //
+                "    @org.ubercraft.statsd.annotation.Timed public void run() {}", //
+                "}");
+    }
+
+    @Test
+    public void testPrivateClass() throws Exception {
+        assertError("class with @Timed or @Counted methods must not be final or private", "Outer", //
+                "public class Outer {", //
+                "    private static class Inner {", //
+                "        @org.ubercraft.statsd.annotation.Timed public void run() {}", //
+                "    }", //
+                "}");
+    }
+
+    @Test
+    public void testInnerClass() throws Exception {
+        assertError("class with @Timed or @Counted methods must be a top level or static nested class", "Outer", //
+                "public class Outer {", //
+                "    public class Inner {", //
+                "        @org.ubercraft.statsd.annotation.Timed public void run() {}", //
+                "    }", //
+                "}");
+    }
+
+    @Test
+    public void testPrivateConstructor() throws Exception {
+        assertError("class with @Timed or @Counted methods must have a non-private constructor", "Private", //
+                "public class Private {", //
+                "    private Private() {}", //
+                "    @org.ubercraft.statsd.annotation.Counted public void run() {}", //
+                "}");
+    }
+
+    @Test
+    public void testNotOverridable() throws Exception {
+        String message = "@Timed or @Counted method must not be private, static, final or abstract";
+        assertError(message, "Methods", //
+                "public class Methods {", //
+                "    @org.ubercraft.statsd.annotation.Timed private void run() {}", //
+                "}");
+        assertError(message, "Methods", //
+                "public class Methods {", //
+                "    @org.ubercraft.statsd.annotation.Timed public static void run() {}", //
+                "}");
+        assertError(message, "Methods", //
+                "public class Methods {", //
+                "    @org.ubercraft.statsd.annotation.Counted public final void run() {}", //
+                "}");
+        assertError(message, "Methods", //
+                "public abstract class Methods {", //
+                "    @org.ubercraft.statsd.annotation.Counted public abstract void run();", //
+                "}");
+    }
+
+    @Test
+    public void testInterface() throws Exception {
+        assertError("@Timed and @Counted can only be used on methods of classes", "Api", //
+                "public interface Api {", //
+                "    @org.ubercraft.statsd.annotation.Timed void run();", //
+                "}");
+    }
+
+    private static void assertCompiles(String className, String... lines) throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(className, lines);
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static void assertError(String message, String className, String... lines) throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(className, lines);
+        assertFalse("expected an error: " + message, errors.isEmpty());
+        assertEquals(message, errors.get(0).getMessage(Locale.ENGLISH));
+    }
+
+    // compiles the given source with the annotation processor, returning the errors
+    private static List<Diagnostic<? extends JavaFileObject>> compile(String className, String... lines)
+            throws Exception {
+        final StringBuilder source = new StringBuilder();
+        for (String line : lines) {
+            source.append(line).append('\n');
+        }
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        File out = File.createTempFile("statsd-processor", "");
+        out.delete();
+        out.mkdir();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        try {
+            List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), //
+                    "-processor", StatsdAnnotationProcessor.class.getName(), //
+                    "-d", out.getPath(), "-s", out.getPath());
+            compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singleton(file)).call();
+        }
+        finally {
+            fileManager.close();
+            delete(out);
+        }
+
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void assertStat(int i, String key, StatsdStatType type) {
+        ILoggingEvent event = appender.list.get(i);
+        assertEquals(key, event.getLoggerName());
+        assertEquals(type, event.getArgumentArray()[0]);
+    }
+}
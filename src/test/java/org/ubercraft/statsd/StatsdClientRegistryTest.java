@@ -0,0 +1,304 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StatsdClientRegistryTest {
+
+    private final StatsdClientRegistry.Factory factory = new StatsdClientRegistry.Factory() {
+        @Override
+        public StatsdClient create() throws Exception {
+            return new StatsdClient("localhost", -1, 10);
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        StatsdClientRegistry.expireAll();
+        StatsdClientRegistry.setLinger(StatsdClientRegistry.DEFAULT_LINGER);
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        StatsdClient a = StatsdClientRegistry.acquire("registry.shared?a", "registry.shared", "owner", factory);
+        StatsdClient b = StatsdClientRegistry.acquire("registry.shared?a", "registry.shared", "owner", factory);
+        assertSame(a, b);
+
+        StatsdClient c = StatsdClientRegistry.acquire("registry.shared?c", "registry.shared", "owner", factory);
+        assertNotSame(a, c);
+
+        StatsdClientRegistry.release(a);
+        StatsdClientRegistry.release(b);
+        StatsdClientRegistry.release(c);
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+
+        StatsdClient a = StatsdClientRegistry.acquire("registry.linger?a", "registry.linger", "owner", factory);
+        StatsdClientRegistry.release(a);
+
+        // reacquired within the linger period
+        StatsdClient b = StatsdClientRegistry.acquire("registry.linger?a", "registry.linger", "owner", factory);
+        assertSame(a, b);
+        StatsdClientRegistry.release(b);
+
+        // different settings replace the lingering client
+        StatsdClient c = StatsdClientRegistry.acquire("registry.linger?c", "registry.linger", "owner", factory);
+        assertNotSame(a, c);
+        StatsdClientRegistry.release(c);
+
+        StatsdClient d = StatsdClientRegistry.acquire("registry.linger?a", "registry.linger", "owner", factory);
+        assertNotSame(a, d);
+        StatsdClientRegistry.release(d);
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        StatsdClientRegistry.setLinger(0);
+
+        StatsdClient a = StatsdClientRegistry.acquire("registry.expired?a", "registry.expired", "owner", factory);
+        StatsdClientRegistry.release(a);
+
+        StatsdClient b = StatsdClientRegistry.acquire("registry.expired?a", "registry.expired", "owner", factory);
+        assertNotSame(a, b);
+        StatsdClientRegistry.release(b);
+    }
+
+    @Test
+    public void testHandOver() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+
+        // a client whose send thread is held up, so stats stay queued
+        final CountDownLatch sending = new CountDownLatch(1);
+        StatsdClient a = StatsdClientRegistry.acquire("registry.handover?a", "registry.handover", "owner", //
+                new StatsdClientRegistry.Factory() {
+                    @Override
+                    public StatsdClient create() throws Exception {
+                        return new StatsdClient("localhost", -1, 10) {
+                            @Override
+                            protected void sendToServer(ByteBuffer packet) throws IOException {
+                                sending.countDown();
+                                try {
+                                    new CountDownLatch(1).await();
+                                }
+                                catch (InterruptedException e) {
+                                    // handed over
+                                }
+                            }
+                        };
+                    }
+                });
+        a.count("blocker");
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        a.count("kh.1");
+        a.count("kh.2");
+        StatsdClientRegistry.release(a);
+
+        // the same owner, with different settings, takes over the queued stats
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        StatsdClient c = StatsdClientRegistry.acquire("registry.handover?c", "registry.handover", "owner", //
+                new StatsdClientRegistry.Factory() {
+                    @Override
+                    public StatsdClient create() throws Exception {
+                        return new StatsdClient("localhost", -1, 10) {
+                            @Override
+                            protected void sendToServer(ByteBuffer packet) throws IOException {
+                                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+                            }
+                        };
+                    }
+                });
+        try {
+            String sent = packets.poll(5, TimeUnit.SECONDS);
+            if (!sent.contains("\n")) {
+                sent += "\n" + packets.poll(5, TimeUnit.SECONDS);
+            }
+            assertEquals("kh.1:1|c\nkh.2:1|c", sent);
+            assertNull(packets.poll(100, TimeUnit.MILLISECONDS));
+
+            // and the lingering client is gone
+            StatsdClient d = StatsdClientRegistry.acquire("registry.handover?a", "registry.handover", "owner", factory);
+            assertNotSame(a, d);
+            StatsdClientRegistry.release(d);
+        }
+        finally {
+            StatsdClientRegistry.release(c);
+        }
+    }
+
+    @Test
+    public void testSharedNotHandedOver() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+
+        StatsdClient a = StatsdClientRegistry.acquire("registry.nohandover?a", "registry.nohandover", "x", factory);
+        StatsdClient b = StatsdClientRegistry.acquire("registry.nohandover?a", "registry.nohandover", "y", factory);
+        StatsdClientRegistry.release(a);
+        StatsdClientRegistry.release(b);
+
+        // only one of its owners has moved on, so the client lingers for the other
+        StatsdClient c = StatsdClientRegistry.acquire("registry.nohandover?c", "registry.nohandover", "x", factory);
+        StatsdClient d = StatsdClientRegistry.acquire("registry.nohandover?a", "registry.nohandover", "y", factory);
+        assertSame(a, d);
+
+        StatsdClientRegistry.release(c);
+        StatsdClientRegistry.release(d);
+    }
+
+    @Test
+    public void testUnownedNotHandedOver() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+
+        StatsdClient a = StatsdClientRegistry.acquire("registry.unowned?a", "registry.unowned", null, factory);
+        StatsdClientRegistry.release(a);
+
+        // without an owner, there is no telling whose client it was
+        StatsdClient c = StatsdClientRegistry.acquire("registry.unowned?c", "registry.unowned", null, factory);
+        StatsdClient d = StatsdClientRegistry.acquire("registry.unowned?a", "registry.unowned", null, factory);
+        assertSame(a, d);
+
+        StatsdClientRegistry.release(c);
+        StatsdClientRegistry.release(d);
+    }
+
+    @Test
+    public void testTimerStopped() throws Exception {
+        StatsdClientRegistry.expireAll(); // left by other tests
+        StatsdClientRegistry.setLinger(60000);
+
+        StatsdClient a = StatsdClientRegistry.acquire("registry.timer?a", "registry.timer", "owner", factory);
+        StatsdClientRegistry.release(a);
+        assertTrue(StatsdClientRegistry.isTimerRunning());
+
+        // nothing lingering any more
+        StatsdClient b = StatsdClientRegistry.acquire("registry.timer?a", "registry.timer", "owner", factory);
+        assertFalse(StatsdClientRegistry.isTimerRunning());
+
+        StatsdClientRegistry.setLinger(0);
+        StatsdClientRegistry.release(b);
+        assertFalse(StatsdClientRegistry.isTimerRunning());
+    }
+
+    @Test
+    public void testSharedSpillBuffer() throws Exception {
+        File file = File.createTempFile("statsd-spill", ".buf");
+        try {
+            StatsdSpillBuffer a = StatsdClientRegistry.acquireSpillBuffer(file, 64, 1000);
+            StatsdSpillBuffer b = StatsdClientRegistry.acquireSpillBuffer(file, 128, 2000);
+            assertSame(a, b);
+            assertEquals(64, b.getCapacity());
+
+            StatsdClientRegistry.releaseSpillBuffer(a);
+            assertTrue(b.offer("a:1|c".getBytes(), 100));
+
+            // closed when released for the last time
+            StatsdClientRegistry.releaseSpillBuffer(b);
+            assertFalse(b.offer("b:1|c".getBytes(), 100));
+            StatsdSpillBuffer c = StatsdClientRegistry.acquireSpillBuffer(file, 64, 1000);
+            assertNotSame(a, c);
+            StatsdClientRegistry.releaseSpillBuffer(c);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSpillBufferKept() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+        File file = File.createTempFile("statsd-spill", ".buf");
+        try {
+            StatsdClient a = StatsdClientRegistry.acquire("registry.spillkept?a", "registry.spillkept", "owner", //
+                    spillingFactory(file, null));
+            StatsdSpillBuffer spillBuffer = a.getSpillBuffer();
+            assertTrue(spillBuffer.offer("ks.1:1|c".getBytes(), System.currentTimeMillis()));
+            StatsdClientRegistry.release(a);
+
+            // the new client has the same spill file, so takes over the buffer, stats and all
+            BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+            StatsdClient c = StatsdClientRegistry.acquire("registry.spillkept?c", "registry.spillkept", "owner", //
+                    spillingFactory(file, packets));
+            try {
+                assertSame(spillBuffer, c.getSpillBuffer());
+                c.count("wake");
+                assertTrue(packets.poll(5, TimeUnit.SECONDS).contains("ks.1:1|c") || //
+                        packets.poll(5, TimeUnit.SECONDS).contains("ks.1:1|c"));
+            }
+            finally {
+                StatsdClientRegistry.release(c);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSpillBufferHandedOver() throws Exception {
+        StatsdClientRegistry.setLinger(60000);
+        File fileA = File.createTempFile("statsd-spill", ".buf");
+        File fileC = File.createTempFile("statsd-spill", ".buf");
+        try {
+            StatsdClient a = StatsdClientRegistry.acquire("registry.spillhandover?a", "registry.spillhandover", //
+                    "owner", spillingFactory(fileA, null));
+            StatsdSpillBuffer spillBuffer = a.getSpillBuffer();
+            assertTrue(spillBuffer.offer("ks.2:1|c".getBytes(), System.currentTimeMillis()));
+            StatsdClientRegistry.release(a);
+
+            // the new client has a spill file of its own, so the spilled stats are moved there
+            BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+            StatsdClient c = StatsdClientRegistry.acquire("registry.spillhandover?c", "registry.spillhandover", //
+                    "owner", spillingFactory(fileC, packets));
+            try {
+                assertNotSame(spillBuffer, c.getSpillBuffer());
+                c.count("wake");
+                assertTrue(packets.poll(5, TimeUnit.SECONDS).contains("ks.2:1|c") || //
+                        packets.poll(5, TimeUnit.SECONDS).contains("ks.2:1|c"));
+            }
+            finally {
+                StatsdClientRegistry.release(c);
+            }
+        }
+        finally {
+            fileA.delete();
+            fileC.delete();
+        }
+    }
+
+    // creates clients with a spill buffer on the given file, which send to the given queue, or if none, synchronous
+    // clients that never replay what is spilled
+    private static StatsdClientRegistry.Factory spillingFactory(final File file,
+            final BlockingQueue<String> packets) {
+        return new StatsdClientRegistry.Factory() {
+            @Override
+            public StatsdClient create() throws Exception {
+                StatsdClient client = new StatsdClient("localhost", -1, packets != null ? 10 : 0) {
+                    @Override
+                    protected void sendToServer(ByteBuffer packet) throws IOException {
+                        if (packets != null) {
+                            packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+                        }
+                    }
+                };
+                client.setSpillBuffer(StatsdClientRegistry.acquireSpillBuffer(file, 1024, 60000));
+                return client;
+            }
+        };
+    }
+}
@@ -1,11 +1,21 @@
 package org.ubercraft.statsd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.ubercraft.statsd.StatsdStatType.COUNTER;
 import static org.ubercraft.statsd.StatsdStatType.GAUGE;
 import static org.ubercraft.statsd.StatsdStatType.TIMER;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -78,4 +88,248 @@ public class StatsdClientTest {
         expected = "kc.q:5|g";
         client.stat(GAUGE, "kc.q", 5, 1.0D);
     }
+
+    @Test
+    public void testBatch() throws Exception {
+        BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        StatsdClient client = syncClient(packets);
+        client.setPacking(true);
+
+        StatsdBatch batch = client.batch();
+        batch.count("kd.a", 2).time("kd.b", 15).gauge("kd.c", -1).count("kd.d", 0.0D);
+        assertEquals(3, batch.size());
+
+        assertTrue(client.submit(batch));
+        assertEquals(Arrays.asList("kd.a:2|c\nkd.b:15|ms\nkd.c:-1|g"), new ArrayList<String>(packets));
+        assertFalse(batch.isPending());
+
+        assertSame(batch, client.batch());
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void testBatchUnpacked() throws Exception {
+        BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        StatsdClient client = syncClient(packets);
+        assertFalse(client.isPacking());
+
+        // one stat per packet, by default
+        assertTrue(client.submit(client.batch().count("ke.a", 2).time("ke.b", 15).gauge("ke.c", -1)));
+        assertEquals(Arrays.asList("ke.a:2|c", "ke.b:15|ms", "ke.c:-1|g"), new ArrayList<String>(packets));
+    }
+
+    @Test
+    public void testQueuedUnpacked() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StatsdClient queued = new StatsdClient((String)null, -1, 10) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+        try {
+            // hold up the send thread, while more stats are queued
+            queued.count("ku.0");
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+            queued.count("ku.1");
+            queued.submit(new StatsdBatch().count("ku.2").count("ku.3"));
+
+            release.countDown();
+            for (int i = 0; i < 4; i++) {
+                assertEquals("ku." + i + ":1|c", packets.poll(5, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            queued.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueuedPacking() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        StatsdClient queued = new StatsdClient((String)null, -1, 100) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+        queued.setMaxPacketSize(20);
+        queued.setPacking(true);
+        try {
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                queued.count("kq." + i, i);
+                expected.append(expected.length() > 0 ? "\n" : "").append("kq.").append(i).append(':').append(i) //
+                        .append("|c");
+            }
+
+            StringBuilder actual = new StringBuilder();
+            while (actual.length() < expected.length()) {
+                String packet = packets.poll(5, TimeUnit.SECONDS);
+                assertTrue(packet != null && packet.length() <= 20);
+                actual.append(actual.length() > 0 ? "\n" : "").append(packet);
+            }
+            assertEquals(expected.toString(), actual.toString());
+        }
+        finally {
+            queued.shutdown();
+        }
+    }
+
+    @Test
+    public void testPriorityLanes() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StatsdClient queued = new StatsdClient((String)null, -1, null, 2, 2, 2) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+        queued.setPacking(true);
+        try {
+            // hold up the send thread
+            queued.count("blocker");
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+            // a flood of low priority stats only fills up the low lane
+            assertTrue(queued.send(StatsdPriority.LOW, COUNTER, "l1", 1, 1.0D));
+            assertTrue(queued.send(StatsdPriority.LOW, COUNTER, "l2", 1, 1.0D));
+            assertFalse(queued.send(StatsdPriority.LOW, COUNTER, "l3", 1, 1.0D));
+            assertTrue(queued.submit(StatsdPriority.HIGH, new StatsdBatch().count("h1").count("h2")));
+            assertTrue(queued.send(StatsdPriority.HIGH, COUNTER, "h3", 1, 1.0D));
+
+            assertEquals(1, queued.getDroppedCount(StatsdPriority.LOW));
+            assertEquals(0, queued.getDroppedCount(StatsdPriority.HIGH));
+            assertEquals(0, queued.getDroppedCount(StatsdPriority.NORMAL));
+
+            release.countDown();
+            assertEquals("blocker:1|c", packets.poll(5, TimeUnit.SECONDS));
+            String packet = packets.poll(5, TimeUnit.SECONDS);
+            assertTrue(packet, packet.startsWith("h1:1|c\nh2:1|c\n"));
+            assertEquals(5, packet.split("\n").length);
+        }
+        finally {
+            queued.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullKey() throws Exception {
+        client.count(null);
+    }
+
+    @Test
+    public void testEncoderFailure() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        StatsdClient queued = new StatsdClient((String)null, -1, 10) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+
+            @Override
+            protected void errorSendFailed(String stat, Exception e) {
+                errors.add(e);
+            }
+        };
+        queued.setEncoder(new StatsdEncoder() {
+            @Override
+            public void encode(ByteBuffer buffer, StatsdStatType type, String key, long value, double sampleRate,
+                    long timestamp) {
+                if (key.startsWith("bad")) {
+                    throw new IllegalStateException(key);
+                }
+                StatsdEncoders.STATSD.encode(buffer, type, key, value, sampleRate, timestamp);
+            }
+        });
+        queued.setPacking(true);
+        try {
+            queued.count("bad.0");
+            assertEquals("bad.0", errors.poll(5, TimeUnit.SECONDS).getMessage());
+
+            // the send thread is still going, and only the bad stat in a batch is dropped
+            queued.submit(new StatsdBatch().count("good.0").count("bad.1").count("good.1"));
+            assertEquals("bad.1", errors.poll(5, TimeUnit.SECONDS).getMessage());
+            assertEquals("good.0:1|c\ngood.1:1|c", packets.poll(5, TimeUnit.SECONDS));
+        }
+        finally {
+            queued.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testLegacySendToServer() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        StatsdClient legacy = new StatsdClient((String)null, -1) {
+            @Override
+            protected void sendToServer(String stat) throws IOException {
+                packets.add(stat);
+            }
+        };
+        legacy.count("kl");
+        assertEquals("kl:1|c", packets.poll());
+    }
+
+    @Test
+    public void testShutdownSendsQueued() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StatsdClient queued = new StatsdClient((String)null, -1, 10) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    // shutting down
+                }
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+        queued.setPacking(true);
+
+        // hold up the send thread, while more stats are queued
+        queued.count("ks.0");
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        queued.count("ks.1");
+        queued.count("ks.2");
+
+        queued.shutdown();
+        release.countDown();
+
+        assertEquals("ks.0:1|c", packets.poll(5, TimeUnit.SECONDS));
+        assertEquals("ks.1:1|c\nks.2:1|c", packets.poll(5, TimeUnit.SECONDS));
+    }
+
+    // a client that sends in the calling thread, adding the packets sent to the given queue
+    private static StatsdClient syncClient(final BlockingQueue<String> packets) throws Exception {
+        return new StatsdClient((String)null, -1) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+    }
 }
@@ -0,0 +1,78 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.ubercraft.statsd.StatsdStatType.COUNTER;
+import static org.ubercraft.statsd.StatsdStatType.GAUGE;
+import static org.ubercraft.statsd.StatsdStatType.TIMER;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class StatsdEncoderTest {
+
+    private static final long TIMESTAMP = 1356998400123L;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+    private String encode(StatsdEncoder encoder, StatsdStatType type, String key, long value, double sampleRate) {
+        buffer.clear();
+        encoder.encode(buffer, type, key, value, sampleRate, TIMESTAMP);
+        return new String(buffer.array(), 0, buffer.position());
+    }
+
+    @Test
+    public void testStatsd() throws Exception {
+        StatsdEncoder encoder = StatsdEncoders.STATSD;
+        assertEquals("ka.t:1|c", encode(encoder, COUNTER, "ka.t", 1, 1.0D));
+        assertEquals("ka.q:-2|c", encode(encoder, COUNTER, "ka.q", -2, 1.0D));
+        assertEquals("ka.r:-2|c|@0.900000", encode(encoder, COUNTER, "ka.r", -2, 0.9D));
+        assertEquals("kb:15|ms", encode(encoder, TIMER, "kb", 15, 1.0D));
+        assertEquals("kb.w:25|ms|@0.300000", encode(encoder, TIMER, "kb.w", 25, 0.3D));
+        assertEquals("kc:0|g", encode(encoder, GAUGE, "kc", 0, 1.0D));
+        assertEquals("kd:9223372036854775807|g", encode(encoder, GAUGE, "kd", Long.MAX_VALUE, 1.0D));
+        assertEquals("kd:-9223372036854775808|g", encode(encoder, GAUGE, "kd", Long.MIN_VALUE, 1.0D));
+        assertEquals("ke:1|c|@0.000001", encode(encoder, COUNTER, "ke", 1, 0.0000005D));
+    }
+
+    @Test
+    public void testDogStatsd() throws Exception {
+        assertEquals("ka.t:1|c", encode(StatsdEncoders.DOGSTATSD, COUNTER, "ka.t", 1, 1.0D));
+
+        StatsdEncoder encoder = new StatsdDogEncoder("env:prod", " service:web");
+        assertEquals("ka.t:1|c|#env:prod,service:web", encode(encoder, COUNTER, "ka.t", 1, 1.0D));
+        assertEquals("kb:15|ms|@0.500000|#env:prod,service:web", encode(encoder, TIMER, "kb", 15, 0.5D));
+        assertEquals("kc:-3|g|#env:prod,service:web", encode(encoder, GAUGE, "kc", -3, 1.0D));
+    }
+
+    @Test
+    public void testGraphite() throws Exception {
+        StatsdEncoder encoder = StatsdEncoders.GRAPHITE;
+        assertEquals("ka.t 1 1356998400", encode(encoder, COUNTER, "ka.t", 1, 1.0D));
+        assertEquals("ka.r 20 1356998400", encode(encoder, COUNTER, "ka.r", 2, 0.1D));
+        assertEquals("kb 15 1356998400", encode(encoder, TIMER, "kb", 15, 0.5D));
+        assertEquals("kc -3 1356998400", encode(encoder, GAUGE, "kc", -3, 1.0D));
+        assertEquals("k_d 1 1356998400", encode(encoder, GAUGE, "k d", 1, 1.0D));
+    }
+
+    @Test
+    public void testInflux() throws Exception {
+        StatsdEncoder encoder = StatsdEncoders.INFLUX;
+        assertEquals("ka.t,type=c value=1i 1356998400123000000", encode(encoder, COUNTER, "ka.t", 1, 1.0D));
+        assertEquals("ka.r,type=c value=2i,sample_rate=0.100000 1356998400123000000",
+                encode(encoder, COUNTER, "ka.r", 2, 0.1D));
+        assertEquals("kb,type=ms value=15i 1356998400123000000", encode(encoder, TIMER, "kb", 15, 1.0D));
+        assertEquals("kc,type=g value=-3i 1356998400123000000", encode(encoder, GAUGE, "kc", -3, 1.0D));
+        assertEquals("k\\,d\\ e,type=g value=1i 1356998400123000000", encode(encoder, GAUGE, "k,d e", 1, 1.0D));
+    }
+
+    @Test
+    public void testForName() throws Exception {
+        assertEquals(StatsdEncoders.STATSD, StatsdEncoders.forName(null));
+        assertEquals(StatsdEncoders.STATSD, StatsdEncoders.forName("statsd"));
+        assertEquals(StatsdEncoders.DOGSTATSD, StatsdEncoders.forName("DogStatsD"));
+        assertEquals(StatsdEncoders.GRAPHITE, StatsdEncoders.forName("graphite"));
+        assertEquals(StatsdEncoders.INFLUX, StatsdEncoders.forName("influx"));
+        assertEquals(StatsdGraphiteEncoder.class, StatsdEncoders.forName(StatsdGraphiteEncoder.class.getName()).getClass());
+    }
+}
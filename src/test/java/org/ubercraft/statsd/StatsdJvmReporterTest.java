@@ -0,0 +1,214 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.LoggerContext;
+
+public class StatsdJvmReporterTest {
+
+    private final StringBuffer sent = new StringBuffer();
+
+    // packets containing this fail to send, "" for all of them, or null for none
+    private volatile String failOn;
+
+    private final StatsdClient client = new StatsdClient("localhost", -1) {
+        @Override
+        protected void sendToServer(ByteBuffer packet) throws IOException {
+            String stats = new String(packet.array(), packet.position(), packet.remaining());
+            String failOn = StatsdJvmReporterTest.this.failOn;
+            if (failOn != null && stats.contains(failOn)) {
+                throw new IOException("failing");
+            }
+            sent.append(stats).append('\n');
+        }
+    };
+
+    private final FakeGcBean gcBean = new FakeGcBean();
+
+    public StatsdJvmReporterTest() throws Exception {}
+
+    @Test
+    public void testReport() throws Exception {
+        StatsdJvmReporter reporter = reporter(1000);
+
+        gcBean.collect(3, 20);
+        assertTrue(reporter.report());
+
+        String stats = sent.toString();
+        assertTrue(stats, stats.matches("(?s).*app\\.jvm\\.memory\\.heap\\.used:\\d+\\|g\n.*"));
+        assertTrue(stats, stats.matches("(?s).*app\\.jvm\\.memory\\.nonheap\\.committed:\\d+\\|g\n.*"));
+        assertTrue(stats, stats.matches("(?s).*app\\.jvm\\.threads\\.count:\\d+\\|g\n.*"));
+        assertTrue(stats, stats.matches("(?s).*app\\.jvm\\.classes\\.loaded:\\d+\\|g\n.*"));
+        // the collections since the reporter was created are counted
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.count:3|c\n"));
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.time:20|c\n"));
+
+        // counters are deltas, so nothing more to count if no more collections have happened
+        sent.setLength(0);
+        assertTrue(reporter.report());
+        stats = sent.toString();
+        assertFalse(stats, stats.contains("app.jvm.gc."));
+        assertFalse(stats, stats.contains("classes.unloaded:0|c"));
+
+        gcBean.collect(1, 5);
+        assertTrue(reporter.report());
+        stats = sent.toString();
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.count:1|c\n"));
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.time:5|c\n"));
+    }
+
+    @Test
+    public void testCountedAgainAfterFailure() throws Exception {
+        StatsdJvmReporter reporter = reporter(1000);
+
+        gcBean.collect(2, 10);
+        failOn = "";
+        assertFalse(reporter.report());
+
+        // the collections are still counted, as the previous sample was not sent
+        failOn = null;
+        gcBean.collect(1, 5);
+        assertTrue(reporter.report());
+        String stats = sent.toString();
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.count:3|c\n"));
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.time:15|c\n"));
+    }
+
+    @Test
+    public void testSentNotCountedAgain() throws Exception {
+        StatsdJvmReporter reporter = reporter(1000);
+
+        // the count is sent, but the time is not
+        gcBean.collect(2, 10);
+        failOn = "gc.Fake_GC.time";
+        assertFalse(reporter.report());
+        String stats = sent.toString();
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.count:2|c\n"));
+
+        // so only the time is counted again
+        failOn = null;
+        sent.setLength(0);
+        gcBean.collect(1, 5);
+        assertTrue(reporter.report());
+        stats = sent.toString();
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.count:1|c\n"));
+        assertTrue(stats, stats.contains("app.jvm.gc.Fake_GC.time:15|c\n"));
+    }
+
+    @Test
+    public void testThreadSurvivesFailure() throws Exception {
+        StatsdJvmReporter reporter = reporter(10);
+        gcBean.broken = true;
+        reporter.start();
+        try {
+            Thread.sleep(50);
+
+            // the reports that failed are followed by one that does not
+            gcBean.broken = false;
+            gcBean.collect(1, 5);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!sent.toString().contains("app.jvm.gc.Fake_GC.count:1|c\n")) {
+                assertTrue(sent.toString(), System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void testSharedClient() throws Exception {
+        StatsdLogbackAppender a = appender("jvm.a");
+        StatsdLogbackAppender b = appender("jvm.b");
+        try {
+            // one reporter, on the client shared by both appenders
+            assertSame(a.getClient(), b.getClient());
+            StatsdJvmReporter reporter = a.getClient().getJvmReporter();
+            assertNotNull(reporter);
+            assertEquals(60000, reporter.getInterval());
+        }
+        finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    private StatsdJvmReporter reporter(long interval) {
+        List<GarbageCollectorMXBean> gcBeans = Collections.<GarbageCollectorMXBean> singletonList(gcBean);
+        return new StatsdJvmReporter(client, "app.jvm", interval, gcBeans);
+    }
+
+    private static StatsdLogbackAppender appender(String name) {
+        StatsdLogbackAppender appender = new StatsdLogbackAppender();
+        appender.setContext((LoggerContext)LoggerFactory.getILoggerFactory());
+        appender.setName(name);
+        appender.setHost("localhost");
+        appender.setQueueSize(10);
+        appender.setJvmMetrics(true);
+        appender.setJvmMetricsInterval(60000);
+        appender.start();
+        return appender;
+    }
+
+    // a collector whose collections are made up by the test
+    private static class FakeGcBean implements GarbageCollectorMXBean {
+
+        volatile long count;
+        volatile long time;
+        volatile boolean broken;
+
+        synchronized void collect(long count, long time) {
+            this.count += count;
+            this.time += time;
+        }
+
+        @Override
+        public long getCollectionCount() {
+            if (broken) {
+                throw new IllegalStateException("broken");
+            }
+            return count;
+        }
+
+        @Override
+        public long getCollectionTime() {
+            return time;
+        }
+
+        @Override
+        public String getName() {
+            return "Fake GC";
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public String[] getMemoryPoolNames() {
+            return new String[0];
+        }
+
+        @Override
+        public ObjectName getObjectName() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class StatsdLogEventAppenderTest {
+
+    private final LoggerContext context = (LoggerContext)LoggerFactory.getILoggerFactory();
+
+    private StatsdTestServer server;
+    private StatsdLogEventAppender appender;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StatsdTestServer();
+        appender = new StatsdLogEventAppender();
+        appender.setContext(context);
+        appender.setHost("localhost");
+        appender.setPort(server.getPort());
+        // flushed explicitly
+        appender.setFlushInterval(60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        appender.stop();
+        server.close();
+        StatsdClientRegistry.setLinger(StatsdClientRegistry.DEFAULT_LINGER);
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        appender.setDepth(2);
+        appender.start();
+
+        log("com.example.a.B", Level.WARN);
+        log("com.example.c", Level.WARN);
+        log("com.example.c", Level.ERROR);
+        log("other", Level.INFO);
+        appender.flush();
+
+        assertEquals(new HashSet<String>(Arrays.asList( //
+                "log.com.example.warn:2|c", "log.com.example.error:1|c", "log.other.info:1|c")), //
+                new HashSet<String>(server.receive(3)));
+
+        // counts are reset by flushing
+        log("other", Level.INFO);
+        appender.flush();
+        assertEquals(Arrays.asList("log.other.info:1|c"), server.receive(1));
+        assertNull(server.poll(100));
+    }
+
+    @Test
+    public void testNoPrefix() throws Exception {
+        appender.setPrefix("");
+        appender.start();
+        log("com.example.a", Level.DEBUG);
+        appender.flush();
+        assertEquals(Arrays.asList("com.example.a.debug:1|c"), server.receive(1));
+    }
+
+    @Test
+    public void testNullPrefix() throws Exception {
+        appender.setPrefix(null);
+        appender.start();
+        log("com.example.a", Level.TRACE);
+        appender.flush();
+        assertEquals(Arrays.asList("com.example.a.trace:1|c"), server.receive(1));
+    }
+
+    @Test
+    public void testMaxKeys() throws Exception {
+        appender.setMaxKeys(2);
+        appender.start();
+
+        log("a", Level.INFO);
+        log("b", Level.INFO);
+        assertEquals(0, appender.getKeyOverflowCount());
+
+        // new keys beyond the limit are all counted as other
+        log("c", Level.INFO);
+        log("d", Level.ERROR);
+        log("a", Level.INFO);
+        appender.flush();
+        assertEquals(new HashSet<String>(Arrays.asList( //
+                "log.a.info:2|c", "log.b.info:1|c", "log.other.info:1|c", "log.other.error:1|c")), //
+                new HashSet<String>(server.receive(4)));
+        assertEquals(2, appender.getKeyOverflowCount());
+    }
+
+    @Test
+    public void testStatEventsIgnored() throws Exception {
+        appender.start();
+        log("statsd.a", Level.INFO, StatsdStatType.COUNTER, 1L, 1.0D);
+        log("statsd.a", Level.INFO, new StatsdBatch().count("statsd.b"));
+        log("statsd.a", Level.INFO);
+        appender.flush();
+        assertEquals(Arrays.asList("log.statsd.a.info:1|c"), server.receive(1));
+        assertNull(server.poll(100));
+    }
+
+    @Test
+    public void testFinalFlushOnStop() throws Exception {
+        // the client is shut down as soon as the appender is stopped
+        StatsdClientRegistry.setLinger(0);
+        appender.start();
+        for (int i = 0; i < 100; i++) {
+            log("stopping" + i, Level.ERROR);
+        }
+        appender.stop();
+        assertEquals(100, server.receive(100).size());
+    }
+
+    private void log(String name, Level level, Object... args) {
+        Logger logger = context.getLogger(name);
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, level, "message", null, args));
+    }
+}
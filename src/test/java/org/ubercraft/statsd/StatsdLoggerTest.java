@@ -0,0 +1,189 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.status.Status;
+
+/**
+ * Tests stats logged via {@link StatsdLogger}, through logback, to a {@link StatsdLogbackAppender}.
+ */
+public class StatsdLoggerTest {
+
+    private static final String NAME = "statsd.loggertest";
+
+    private final LoggerContext context = (LoggerContext)LoggerFactory.getILoggerFactory();
+
+    private StatsdTestServer server;
+    private StatsdLogbackAppender appender;
+    private ListAppender<ILoggingEvent> events;
+    private Logger logbackLogger;
+
+    private StatsdLogger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StatsdTestServer();
+        appender = new StatsdLogbackAppender();
+        appender.setContext(context);
+        appender.setHost("localhost");
+        appender.setPort(server.getPort());
+        appender.setQueueSize(100);
+        appender.start();
+
+        // also keep the events that reach logback
+        events = new ListAppender<ILoggingEvent>();
+        events.setContext(context);
+        events.start();
+
+        // log only to our appenders, at debug level
+        logbackLogger = context.getLogger(NAME);
+        logbackLogger.setAdditive(false);
+        logbackLogger.setLevel(Level.DEBUG);
+        logbackLogger.addAppender(appender);
+        logbackLogger.addAppender(events);
+
+        logger = StatsdLoggerFactory.getLogger(NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logbackLogger.detachAppender(appender);
+        logbackLogger.detachAppender(events);
+        events.stop();
+        logbackLogger.setAdditive(true);
+        logbackLogger.setLevel(null);
+        appender.stop();
+        server.close();
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        logger.infoBatch(StatsdBatch.forCurrentThread().count("kb.info").time("kb.time", 10L));
+        assertEquals(Arrays.asList("kb.info:1|c", "kb.time:10|ms"), server.receive(2));
+
+        logger.debugBatch(StatsdBatch.forCurrentThread().count("kb.debug", 2).gauge("kb.gauge", 5));
+        assertEquals(Arrays.asList("kb.debug:2|c", "kb.gauge:5|g"), server.receive(2));
+
+        // not enabled, so neither logged nor submitted
+        StatsdBatch trace = StatsdBatch.forCurrentThread().count("kb.trace");
+        logger.traceBatch(trace);
+        assertFalse(trace.isPending());
+
+        logger.infoBatch(StatsdBatch.forCurrentThread().count("kb.end"));
+        assertEquals(Arrays.asList("kb.end:1|c"), server.receive(1));
+    }
+
+    @Test
+    public void testDeferredBatch() throws Exception {
+        StatsdBatch batch = StatsdBatch.forCurrentThread().count("kd.logged");
+        logger.infoBatch(batch);
+        assertEquals(Arrays.asList("kd.logged:1|c"), server.receive(1));
+        assertFalse(batch.isPending());
+
+        // the logging thread reuses the batch, before the event is appended again later, as an AsyncAppender would
+        batch.reset().count("kd.reused");
+        ILoggingEvent deferred = events.list.get(events.list.size() - 1);
+        appender.doAppend(deferred);
+        appender.doAppend(deferred);
+
+        // so the batch is dropped, with a single warning
+        assertNull(server.poll(200));
+        int warnings = 0;
+        for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+            if (status.getOrigin() == appender && status.getMessage().contains("dropped a batch")) {
+                warnings++;
+            }
+        }
+        assertEquals(1, warnings);
+
+        // while batches appended in the logging thread are still sent
+        logger.infoBatch(batch);
+        assertEquals(Arrays.asList("kd.reused:1|c"), server.receive(1));
+    }
+
+    @Test
+    public void testSampledById() throws Exception {
+        long dropped = id(false);
+        long kept = id(true);
+
+        // a stat that is not kept never reaches logback
+        logger.infoStat(StatsdStatType.COUNTER, 1L, 0.5D, dropped);
+        logger.debugStat(StatsdStatType.TIMER, 10L, 0.5D, dropped);
+        assertTrue(events.list.isEmpty());
+
+        // a kept stat is sent along with its sample rate, so the server scales it up
+        logger.infoStat(StatsdStatType.COUNTER, 1L, 0.5D, kept);
+        logger.debugStat(StatsdStatType.TIMER, 10L, 0.5D, kept);
+        assertEquals(2, events.list.size());
+        assertEquals(Arrays.asList(NAME + ":1|c|@0.500000", NAME + ":10|ms|@0.500000"), server.receive(2));
+
+        // and trace is not enabled
+        logger.traceStat(StatsdStatType.COUNTER, 1L, 0.5D, kept);
+        assertEquals(2, events.list.size());
+    }
+
+    @Test
+    public void testChildren() throws Exception {
+        StatsdLoggerImpl parent = (StatsdLoggerImpl)StatsdLoggerFactory.getLogger(NAME + ".children");
+
+        StatsdLoggerImpl child = (StatsdLoggerImpl)parent.child("a");
+        assertEquals(NAME + ".children.a", child.getName());
+        assertSame(child, parent.child("a"));
+        assertNotSame(child, parent.child("b"));
+
+        // an empty suffix adds nothing
+        assertSame(parent, parent.child(""));
+        assertSame(parent, parent.child(null));
+        assertEquals(0, parent.getChildOverflowCount());
+    }
+
+    @Test
+    public void testChildOverflow() throws Exception {
+        StatsdLoggerImpl parent = (StatsdLoggerImpl)StatsdLoggerFactory.getLogger(NAME + ".overflow");
+
+        StatsdLogger[] children = new StatsdLogger[1000];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = parent.child("k" + i);
+        }
+        assertEquals(0, parent.getChildOverflowCount());
+
+        // new suffixes beyond the key limit all share the other child
+        StatsdLoggerImpl other = (StatsdLoggerImpl)parent.child("k1000");
+        assertEquals(NAME + ".overflow.other", other.getName());
+        assertSame(other, parent.child("k1001"));
+        assertSame(other, parent.child("other"));
+        assertEquals(2, parent.getChildOverflowCount());
+
+        // while the admitted children are all still cached, however many other children are requested
+        for (int i = 0; i < children.length; i++) {
+            assertSame(children[i], parent.child("k" + i));
+        }
+        assertEquals(2, parent.getChildOverflowCount());
+    }
+
+    // finds an id that is kept, or not, at a sample rate of 0.5
+    private static long id(boolean kept) {
+        long id = 0;
+        while (StatsdSampler.sample(0.5D, id) != kept) {
+            id++;
+        }
+        return id;
+    }
+}
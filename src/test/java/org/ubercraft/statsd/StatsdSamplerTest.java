@@ -0,0 +1,57 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StatsdSamplerTest {
+
+    private static final double[] RATES = {
+            0.0D, 0.01D, 0.1D, 0.25D, 0.5D, 0.9D, 1.0D
+    };
+
+    private static final int IDS = 100000;
+
+    @Test
+    public void testSameIdSameDecision() throws Exception {
+        for (double rate : RATES) {
+            for (long id = -IDS / 2; id < IDS / 2; id++) {
+                assertEquals(StatsdSampler.sample(rate, id), StatsdSampler.sample(rate, id));
+            }
+        }
+    }
+
+    @Test
+    public void testLowerRateSubsetOfHigher() throws Exception {
+        for (long id = 0; id < IDS; id++) {
+            for (int i = 1; i < RATES.length; i++) {
+                if (StatsdSampler.sample(RATES[i - 1], id)) {
+                    assertTrue("id " + id + " kept at " + RATES[i - 1] + " but not " + RATES[i], //
+                            StatsdSampler.sample(RATES[i], id));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKeptInProportion() throws Exception {
+        for (double rate : RATES) {
+            int kept = 0;
+            for (long id = 0; id < IDS; id++) {
+                if (StatsdSampler.sample(rate, id)) {
+                    kept++;
+                }
+            }
+            assertEquals(rate, (double)kept / IDS, 0.01D);
+        }
+    }
+
+    @Test
+    public void testEdgeRates() throws Exception {
+        assertTrue(StatsdSampler.sample(1.0D));
+        assertTrue(StatsdSampler.sample(1.0D, 42));
+        assertFalse(StatsdSampler.sample(0.0D, 42));
+    }
+}
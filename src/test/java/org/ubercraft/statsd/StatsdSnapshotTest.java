@@ -0,0 +1,164 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.ubercraft.statsd.StatsdStatType.COUNTER;
+import static org.ubercraft.statsd.StatsdStatType.GAUGE;
+import static org.ubercraft.statsd.StatsdStatType.TIMER;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class StatsdSnapshotTest {
+
+    // a 10 second window, of 10 one second slots
+    private final StatsdSnapshot snapshot = new StatsdSnapshot(3, 10000, 10);
+
+    @Test
+    public void testCounters() {
+        snapshot.record(COUNTER, "c", 5, 1.0D, 100000);
+        snapshot.record(COUNTER, "c", 1, 0.1D, 101500);
+
+        assertEquals(15, snapshot.getCounterTotal("c", 101999));
+        assertEquals(15 * 1000.0D / 10000, snapshot.getCounterRate("c", 109999), 0.0001D);
+
+        // the first slot has left the window
+        assertEquals(10, snapshot.getCounterTotal("c", 110000));
+        assertEquals(0, snapshot.getCounterTotal("c", 111000));
+
+        // a slot is reused
+        snapshot.record(COUNTER, "c", 2, 1.0D, 110500);
+        assertEquals(12, snapshot.getCounterTotal("c", 110999));
+
+        assertEquals(0, snapshot.getCounterTotal("unknown", 110999));
+    }
+
+    @Test
+    public void testGaugesAndTimers() {
+        snapshot.record(GAUGE, "g", 7, 1.0D, 100000);
+        snapshot.record(GAUGE, "g", 3, 1.0D, 100500);
+        assertEquals(Long.valueOf(3), snapshot.getGauge("g", 101000));
+        assertNull(snapshot.getGauge("g", 111000));
+
+        snapshot.record(TIMER, "t", 10, 1.0D, 100000);
+        snapshot.record(TIMER, "t", 30, 1.0D, 103000);
+        snapshot.record(TIMER, "t", 20, 1.0D, 105000);
+        assertEquals(3, snapshot.getTimerCount("t", 105000));
+        assertEquals(20.0D, snapshot.getTimerMean("t", 105000), 0.0001D);
+        assertEquals(10, snapshot.getTimerMin("t", 105000));
+        assertEquals(30, snapshot.getTimerMax("t", 105000));
+        assertEquals(20, snapshot.getTimerMin("t", 110000));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        final int threads = 8;
+        final int records = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            recorders[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < records; i++) {
+                        // spread over two slots, so the second one is moved on while others are recording
+                        long timestamp = 100000 + (i < records / 2 ? 0 : 1000);
+                        snapshot.record(COUNTER, "c", 1, 1.0D, timestamp);
+                        snapshot.record(TIMER, "t", offset + i % 10, 1.0D, timestamp);
+                    }
+                }
+            };
+            recorders[t].start();
+        }
+        start.countDown();
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        // no stat is lost, however the threads interleave
+        assertEquals(threads * records, snapshot.getCounterTotal("c", 101000));
+        assertEquals(threads * records, snapshot.getTimerCount("t", 101000));
+        assertEquals(0, snapshot.getTimerMin("t", 101000));
+        assertEquals(threads - 1 + 9, snapshot.getTimerMax("t", 101000));
+    }
+
+    @Test
+    public void testMaxKeys() {
+        snapshot.record(COUNTER, "a", 1, 1.0D, 100000);
+        snapshot.record(GAUGE, "b", 1, 1.0D, 100000);
+        snapshot.record(TIMER, "c", 1, 1.0D, 100000);
+        snapshot.record(COUNTER, "d", 1, 1.0D, 100000);
+        snapshot.record(COUNTER, "a", 1, 1.0D, 100000);
+
+        assertEquals(3, snapshot.getKeyCount());
+        assertEquals(1, snapshot.getDroppedKeyCount());
+        assertArrayEquals(new String[] {
+            "a"
+        }, snapshot.getCounterKeys());
+        assertEquals(2, snapshot.getCounterTotal("a", 100000));
+    }
+
+    @Test
+    public void testClientAndJmx() throws Exception {
+        StatsdClient client = new StatsdClient("localhost", -1) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {}
+        };
+        client.setSnapshot(snapshot);
+        client.count("a", 2);
+        client.submit(client.batch().count("a").gauge("b", 4));
+
+        snapshot.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.ubercraft.statsd:type=StatsdSnapshot,name=\"test\"");
+            assertEquals(3L, server.invoke(name, "getCounterTotal", new Object[] {
+                "a"
+            }, new String[] {
+                String.class.getName()
+            }));
+            assertEquals(4L, server.invoke(name, "getGauge", new Object[] {
+                "b"
+            }, new String[] {
+                String.class.getName()
+            }));
+        }
+        finally {
+            snapshot.unregister();
+        }
+    }
+
+    @Test
+    public void testOnlySentRecorded() throws Exception {
+        StatsdClient client = new StatsdClient("localhost", -1) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                throw new IOException("unreachable");
+            }
+        };
+        client.setSnapshot(snapshot);
+        assertFalse(client.count("a", 2));
+        StatsdBatch batch = client.batch().count("a").gauge("b", 4);
+        assertFalse(client.submit(batch));
+        assertFalse(batch.isPending());
+
+        assertEquals(0, snapshot.getCounterTotal("a"));
+        assertNull(snapshot.getGauge("b"));
+    }
+}
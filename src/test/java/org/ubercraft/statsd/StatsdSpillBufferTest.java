@@ -0,0 +1,298 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdSpillBufferTest {
+
+    private File file;
+    private StatsdSpillBuffer buffer;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("statsd-spill", ".buf");
+        buffer = new StatsdSpillBuffer(file, 64, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        buffer.close();
+        file.delete();
+    }
+
+    @Test
+    public void testReplayInOrder() throws Exception {
+        assertTrue(buffer.offer("a:1|c".getBytes(), 100));
+        assertTrue(buffer.offer("b:2|c".getBytes(), 100));
+
+        assertEquals("a:1|c", new String(buffer.poll(200)));
+        assertEquals("b:2|c", new String(buffer.poll(200)));
+        assertNull(buffer.poll(200));
+
+        assertEquals(10, buffer.getSpilledBytes());
+        assertEquals(10, buffer.getReplayedBytes());
+    }
+
+    @Test
+    public void testWrapAroundDropsOldest() throws Exception {
+        // each record is 12 header bytes + 8 data bytes, so only three fit in 64 bytes
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.offer(("k" + i + ":10|ms").getBytes(), 100));
+        }
+
+        assertEquals("k7:10|ms", new String(buffer.poll(200)));
+        assertEquals("k8:10|ms", new String(buffer.poll(200)));
+        assertEquals("k9:10|ms", new String(buffer.poll(200)));
+        assertTrue(buffer.isEmpty());
+
+        assertEquals(7 * 8, buffer.getDroppedBytes());
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        assertTrue(buffer.offer("a:1|c".getBytes(), 100));
+        assertTrue(buffer.offer("b:1|c".getBytes(), 900));
+
+        assertEquals("b:1|c", new String(buffer.poll(1500)));
+        assertEquals(5, buffer.getExpiredBytes());
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        assertFalse(buffer.offer(new byte[64], 100));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testCorruptLength() throws Exception {
+        assertTrue(buffer.offer("a:1|c".getBytes(), 100));
+        assertTrue(buffer.offer("b:1|c".getBytes(), 100));
+
+        // overwrite the length of the first record, behind the buffer's back
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+        finally {
+            raf.close();
+        }
+
+        // the contents are discarded rather than replayed
+        assertNull(buffer.poll(200));
+        assertTrue(buffer.isEmpty());
+        assertEquals(2 * (12 + 5), buffer.getDroppedBytes());
+
+        // and the buffer is usable again
+        assertTrue(buffer.offer("c:1|c".getBytes(), 100));
+        assertEquals(5, buffer.poll(ByteBuffer.allocate(16), 200));
+    }
+
+    @Test(expected = IOException.class)
+    public void testFileInUse() throws Exception {
+        new StatsdSpillBuffer(file, 64, 1000);
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        assertTrue(buffer.offer("a:1|c".getBytes(), 100));
+        buffer.close();
+
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll(200));
+        assertFalse(buffer.offer("b:1|c".getBytes(), 100));
+
+        // the file is free to use again
+        StatsdSpillBuffer reopened = new StatsdSpillBuffer(file, 64, 1000);
+        reopened.close();
+    }
+
+    @Test
+    public void testClientSpillAndReplay() throws Exception {
+        BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        CountDownLatch release = new CountDownLatch(1);
+        StatsdClient client = blockedClient(packets, release);
+        client.setSpillBuffer(buffer);
+        try {
+            // one stat queued, and the rest spilled
+            for (int i = 0; i < 4; i++) {
+                assertTrue(client.count("kp." + i));
+            }
+            assertEquals(3 * 8, buffer.getSpilledBytes());
+
+            release.countDown();
+            assertEquals("blocker:1|c", packets.poll(5, TimeUnit.SECONDS));
+            // one stat per packet by default, though they may be packed together when packing is enabled
+            List<String> stats = new ArrayList<String>();
+            while (stats.size() < 4) {
+                stats.addAll(Arrays.asList(packets.poll(5, TimeUnit.SECONDS).split("\n")));
+            }
+            assertEquals(Arrays.asList("kp.0:1|c", "kp.1:1|c", "kp.2:1|c", "kp.3:1|c"), stats);
+            assertEquals(3 * 8, buffer.getReplayedBytes());
+            assertTrue(buffer.isEmpty());
+        }
+        finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientSpillExpired() throws Exception {
+        File expiringFile = File.createTempFile("statsd-spill", ".buf");
+        StatsdSpillBuffer expiring = new StatsdSpillBuffer(expiringFile, 64, 50);
+        BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        CountDownLatch release = new CountDownLatch(1);
+        StatsdClient client = blockedClient(packets, release);
+        client.setSpillBuffer(expiring);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(client.count("ke." + i));
+            }
+            Thread.sleep(200);
+
+            release.countDown();
+            assertEquals("blocker:1|c", packets.poll(5, TimeUnit.SECONDS));
+            assertEquals("ke.0:1|c", packets.poll(5, TimeUnit.SECONDS));
+            assertNull(packets.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals(2 * 8, expiring.getExpiredBytes());
+            assertEquals(0, expiring.getReplayedBytes());
+        }
+        finally {
+            client.shutdown();
+            expiring.close();
+            expiringFile.delete();
+        }
+    }
+
+    @Test
+    public void testClientReplayFillsPacket() throws Exception {
+        BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        CountDownLatch release = new CountDownLatch(1);
+        release.countDown();
+        StatsdClient client = blockedClient(packets, release);
+        client.setMaxPacketSize(20);
+        client.setSpillReplayRate(5000);
+        client.setPacking(true);
+        try {
+            assertEquals("blocker:1|c", packets.poll(5, TimeUnit.SECONDS));
+            Thread.sleep(10); // for the replay budget to build up
+
+            // together with a separator, these exactly fill a packet
+            assertTrue(buffer.offer("aaaaaaaaaa".getBytes(), System.currentTimeMillis()));
+            assertTrue(buffer.offer("bbbbbbbbb".getBytes(), System.currentTimeMillis()));
+            client.setSpillBuffer(buffer);
+
+            // the replay may be sent either side of the stat that wakes up the send thread
+            client.count("wake");
+            Set<String> sent = new HashSet<String>();
+            sent.add(packets.poll(5, TimeUnit.SECONDS));
+            sent.add(packets.poll(5, TimeUnit.SECONDS));
+            assertEquals(new HashSet<String>(Arrays.asList("wake:1|c", "aaaaaaaaaa\nbbbbbbbbb")), sent);
+
+            // the send thread is still going
+            client.count("after");
+            assertEquals("after:1|c", packets.poll(5, TimeUnit.SECONDS));
+        }
+        finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientReplayUnderLoad() throws Exception {
+        File largeFile = File.createTempFile("statsd-spill", ".buf");
+        StatsdSpillBuffer large = new StatsdSpillBuffer(largeFile, 64 * 1024, 60000);
+        final AtomicInteger replayed = new AtomicInteger();
+        StatsdClient client = new StatsdClient("localhost", -1, 1000) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                String stats = new String(packet.array(), packet.position(), packet.remaining());
+                for (String stat : stats.split("\n")) {
+                    if (stat.startsWith("spilled.")) {
+                        replayed.incrementAndGet();
+                    }
+                }
+            }
+        };
+        client.setSpillReplayRate(1000);
+        try {
+            for (int i = 0; i < 300; i++) {
+                assertTrue(large.offer(("spilled." + i + ":1|c").getBytes(), System.currentTimeMillis()));
+            }
+            client.setSpillBuffer(large);
+
+            // new stats keep arriving faster than the idle wait, yet the spilled ones are replayed at about the rate
+            long deadline = System.currentTimeMillis() + 5000;
+            while (replayed.get() < 300 && System.currentTimeMillis() < deadline) {
+                client.count("live");
+                LockSupport.parkNanos(100000);
+            }
+            assertEquals(300, replayed.get());
+            assertTrue(large.isEmpty());
+        }
+        finally {
+            client.shutdown();
+            large.close();
+            largeFile.delete();
+        }
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        buffer.offer("a:1|c".getBytes(), 100);
+        buffer.register("test");
+        try {
+            ObjectName name = new ObjectName("org.ubercraft.statsd:type=StatsdSpillBuffer,name=\"test\"");
+            assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SpilledBytes"));
+        }
+        finally {
+            buffer.unregister();
+        }
+    }
+
+    // a client with a queue of one, whose send thread is held up sending its first packet until released
+    private static StatsdClient blockedClient(final BlockingQueue<String> packets, final CountDownLatch release)
+            throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        StatsdClient client = new StatsdClient("localhost", -1, 1) {
+            @Override
+            protected void sendToServer(ByteBuffer packet) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    // shutting down
+                }
+                packets.add(new String(packet.array(), packet.position(), packet.remaining()));
+            }
+        };
+        client.count("blocker");
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        return client;
+    }
+}
@@ -0,0 +1,59 @@
+package org.ubercraft.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class StatsdStripedCounterTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 100000;
+
+    private final StatsdStripedCounter counter = new StatsdStripedCounter();
+
+    @Test
+    public void testAdd() {
+        counter.increment();
+        counter.add(5);
+        counter.add(-2);
+        assertEquals(4, counter.sum());
+        assertEquals(4, counter.sumThenReset());
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testStripesLimited() {
+        assertTrue(StatsdStripedCounter.STRIPES <= StatsdStripedCounter.MAX_STRIPES);
+        assertEquals(0, StatsdStripedCounter.STRIPES & (StatsdStripedCounter.STRIPES - 1));
+    }
+
+    @Test
+    public void testSumThenResetConcurrently() throws Exception {
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < INCREMENTS; i++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // no increment is lost, or counted twice, however the resets interleave with the increments
+        final AtomicLong total = new AtomicLong();
+        while (done.getCount() > 0) {
+            total.addAndGet(counter.sumThenReset());
+        }
+        done.await();
+        total.addAndGet(counter.sumThenReset());
+
+        assertEquals((long)THREADS * INCREMENTS, total.get());
+    }
+}
@@ -0,0 +1,64 @@
+package org.ubercraft.statsd;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A statsd server for tests, which receives packets on an ephemeral local port.
+ */
+public class StatsdTestServer {
+
+    private final DatagramSocket sock;
+
+    private final List<String> pending = new ArrayList<String>();
+
+    public StatsdTestServer() throws IOException {
+        sock = new DatagramSocket(0, InetAddress.getByName("localhost"));
+    }
+
+    public int getPort() {
+        return sock.getLocalPort();
+    }
+
+    /**
+     * @return the next stat received (packets of several stats are split into lines), or null if none is received
+     * within the timeout
+     */
+    public String poll(long timeout) throws IOException {
+        if (pending.isEmpty()) {
+            byte[] data = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            sock.setSoTimeout((int)Math.max(timeout, 1));
+            try {
+                sock.receive(packet);
+            }
+            catch (SocketTimeoutException e) {
+                return null;
+            }
+            pending.addAll(Arrays.asList(new String(data, 0, packet.getLength(), "UTF-8").split("\n")));
+        }
+        return pending.remove(0);
+    }
+
+    /**
+     * @return the next <code>count</code> stats received, fewer if they are not received within a few seconds
+     */
+    public List<String> receive(int count) throws IOException {
+        List<String> stats = new ArrayList<String>();
+        String stat;
+        while (stats.size() < count && (stat = poll(5000)) != null) {
+            stats.add(stat);
+        }
+        return stats;
+    }
+
+    public void close() {
+        sock.close();
+    }
+}